@@ -16,15 +16,50 @@
 
 package uk.co.thinkofdeath.thinkcraft.bukkit;
 
+import gnu.trove.iterator.TLongIterator;
+import gnu.trove.set.TLongSet;
+import gnu.trove.set.hash.TLongHashSet;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockState;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
+import org.bukkit.event.block.BlockBreakEvent;
+import org.bukkit.event.block.BlockBurnEvent;
+import org.bukkit.event.block.BlockFadeEvent;
+import org.bukkit.event.block.BlockFormEvent;
+import org.bukkit.event.block.BlockFromToEvent;
+import org.bukkit.event.block.BlockGrowEvent;
+import org.bukkit.event.block.BlockIgniteEvent;
+import org.bukkit.event.block.BlockPhysicsEvent;
+import org.bukkit.event.block.BlockPistonExtendEvent;
+import org.bukkit.event.block.BlockPistonRetractEvent;
+import org.bukkit.event.block.BlockPlaceEvent;
+import org.bukkit.event.block.LeavesDecayEvent;
+import org.bukkit.event.entity.EntityChangeBlockEvent;
+import org.bukkit.event.entity.EntityExplodeEvent;
+import org.bukkit.event.player.PlayerBucketEmptyEvent;
+import org.bukkit.event.player.PlayerBucketFillEvent;
 import org.bukkit.event.world.ChunkLoadEvent;
 import org.bukkit.event.world.ChunkUnloadEvent;
+import org.bukkit.event.world.StructureGrowEvent;
+import uk.co.thinkofdeath.thinkcraft.bukkit.world.ChunkManager;
 
-public class Events implements Listener {
+import java.util.HashMap;
+import java.util.Map;
+
+public class Events implements Listener, Runnable {
 
     private final ThinkMapPlugin plugin;
+    // Physics events fire many times for a single change so the
+    // chunks they touch are only invalidated once per tick
+    private final HashMap<ChunkManager, TLongSet> physicsChanges = new HashMap<>();
+    // Events are all fired on the main thread, this saves a locked
+    // lookup for every block
+    private World lastWorld;
+    private ChunkManager lastChunkManager;
 
     public Events(ThinkMapPlugin plugin) {
         this.plugin = plugin;
@@ -43,4 +78,175 @@ public class Events implements Listener {
         // the chunk
         plugin.getChunkManager(event.getWorld()).deactivateChunk(event.getChunk());
     }
+
+    // Block changes, these remove the cached copies of the
+    // changed chunks
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockPlace(BlockPlaceEvent event) {
+        invalidate(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockBreak(BlockBreakEvent event) {
+        invalidate(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockPhysics(BlockPhysicsEvent event) {
+        Block block = event.getBlock();
+        ChunkManager chunkManager = getChunkManager(block.getWorld());
+        TLongSet changes = physicsChanges.get(chunkManager);
+        if (changes == null) {
+            changes = new TLongHashSet();
+            physicsChanges.put(chunkManager, changes);
+        }
+        int x = block.getX();
+        int z = block.getZ();
+        for (int cx = minChunk(x); cx <= maxChunk(x); cx++) {
+            for (int cz = minChunk(z); cz <= maxChunk(z); cz++) {
+                changes.add(((long) cx << 32) | (cz & 0xFFFFFFFFL));
+            }
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockBurn(BlockBurnEvent event) {
+        invalidate(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockIgnite(BlockIgniteEvent event) {
+        invalidate(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockFade(BlockFadeEvent event) {
+        invalidate(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockForm(BlockFormEvent event) {
+        // Also covers BlockSpreadEvent
+        invalidate(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockGrow(BlockGrowEvent event) {
+        invalidate(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockFromTo(BlockFromToEvent event) {
+        invalidate(event.getToBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onLeavesDecay(LeavesDecayEvent event) {
+        invalidate(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onPistonExtend(BlockPistonExtendEvent event) {
+        ChunkManager chunkManager = getChunkManager(event.getBlock().getWorld());
+        invalidate(chunkManager, event.getBlock());
+        for (Block block : event.getBlocks()) {
+            invalidate(chunkManager, block);
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onPistonRetract(BlockPistonRetractEvent event) {
+        invalidate(event.getBlock());
+        if (event.isSticky()) {
+            invalidate(event.getRetractLocation());
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onEntityChangeBlock(EntityChangeBlockEvent event) {
+        invalidate(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onEntityExplode(EntityExplodeEvent event) {
+        ChunkManager chunkManager = getChunkManager(event.getLocation().getWorld());
+        for (Block block : event.blockList()) {
+            invalidate(chunkManager, block);
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onStructureGrow(StructureGrowEvent event) {
+        ChunkManager chunkManager = getChunkManager(event.getWorld());
+        for (BlockState state : event.getBlocks()) {
+            invalidate(chunkManager, state.getX(), state.getZ());
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBucketEmpty(PlayerBucketEmptyEvent event) {
+        invalidate(event.getBlockClicked());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBucketFill(PlayerBucketFillEvent event) {
+        invalidate(event.getBlockClicked());
+    }
+
+    @Override
+    public void run() {
+        if (physicsChanges.isEmpty()) {
+            return;
+        }
+        for (Map.Entry<ChunkManager, TLongSet> e : physicsChanges.entrySet()) {
+            ChunkManager chunkManager = e.getKey();
+            TLongIterator it = e.getValue().iterator();
+            while (it.hasNext()) {
+                long key = it.next();
+                chunkManager.invalidateChunk((int) (key >> 32), (int) key);
+            }
+        }
+        physicsChanges.clear();
+    }
+
+    private ChunkManager getChunkManager(World world) {
+        if (world != lastWorld) {
+            lastChunkManager = plugin.getChunkManager(world);
+            lastWorld = world;
+        }
+        return lastChunkManager;
+    }
+
+    private void invalidate(Block block) {
+        invalidate(getChunkManager(block.getWorld()), block);
+    }
+
+    private void invalidate(Location location) {
+        invalidate(getChunkManager(location.getWorld()), location.getBlockX(), location.getBlockZ());
+    }
+
+    private void invalidate(ChunkManager chunkManager, Block block) {
+        invalidate(chunkManager, block.getX(), block.getZ());
+    }
+
+    private void invalidate(ChunkManager chunkManager, int x, int z) {
+        for (int cx = minChunk(x); cx <= maxChunk(x); cx++) {
+            for (int cz = minChunk(z); cz <= maxChunk(z); cz++) {
+                chunkManager.invalidateChunk(cx, cz);
+            }
+        }
+    }
+
+    // A change only reaches into the neighbouring chunk (through
+    // its light or connected blocks) when it is on the chunk's edge.
+    // Light spreading further into a neighbour is picked up the
+    // next time that chunk changes or reloads
+    private static int minChunk(int block) {
+        return (block & 0xF) == 0 ? (block >> 4) - 1 : block >> 4;
+    }
+
+    private static int maxChunk(int block) {
+        return (block & 0xF) == 0xF ? (block >> 4) + 1 : block >> 4;
+    }
 }
@@ -32,6 +32,7 @@ import uk.co.thinkofdeath.thinkcraft.bukkit.textures.BufferedTextureFactory;
 import uk.co.thinkofdeath.thinkcraft.bukkit.textures.TextureDetailsSerializer;
 import uk.co.thinkofdeath.thinkcraft.bukkit.web.WebHandler;
 import uk.co.thinkofdeath.thinkcraft.bukkit.world.ChunkManager;
+import uk.co.thinkofdeath.thinkcraft.bukkit.world.EncodingExecutor;
 import uk.co.thinkofdeath.thinkcraft.protocol.Packet;
 import uk.co.thinkofdeath.thinkcraft.protocol.ServerPacketHandler;
 import uk.co.thinkofdeath.thinkcraft.protocol.packets.TimeUpdate;
@@ -54,12 +55,13 @@ public class ThinkMapPlugin extends JavaPlugin implements Runnable {
     // Only needs to be changed when assets we use update
     public static final String MINECRAFT_VERSION = "1.7.9";
     public static final int RESOURCE_VERSION = 6;
-    public static final int WORLD_VERSION = 3;
+    public static final int WORLD_VERSION = 6;
 
     private final Map<String, ChunkManager> chunkManagers = new HashMap<>();
     private final WebHandler webHandler = new WebHandler(this);
     private World targetWorld;
     private PluginConfiguration configuration;
+    private EncodingExecutor encodingExecutor;
 
     private final BukkitCommandManager commandManager = new BukkitCommandManager(this);
 
@@ -83,6 +85,8 @@ public class ThinkMapPlugin extends JavaPlugin implements Runnable {
             getServer().getPluginManager().disablePlugin(this);
             return;
         }
+        encodingExecutor = new EncodingExecutor(configuration.getEncodeThreads(), configuration.getEncodeQueueSize());
+
         // Register commands
         commandManager.register(new Commands(this));
 
@@ -90,20 +94,13 @@ public class ThinkMapPlugin extends JavaPlugin implements Runnable {
         getCommand("thinkmap").setTabCompleter(commandManager);
 
         // Register events
-        getServer().getPluginManager().registerEvents(new Events(this), this);
+        Events events = new Events(this);
+        getServer().getPluginManager().registerEvents(events, this);
+        getServer().getScheduler().runTaskTimer(this, events, 1, 1);
         getServer().getScheduler().runTaskTimer(this, this, 20l, 20 * 2l);
 
-        // Load worlds
         worldDir = new File(getDataFolder(), "worlds");
 
-        for (World world : getServer().getWorlds()) {
-            if (targetWorld == null) {
-                targetWorld = world;
-                getChunkManager(world);
-                break; // TODO: Support multiple worlds
-            }
-        }
-
         // Clear out old resources
         if (configuration.getResourceVersion() != RESOURCE_VERSION) {
             getLogger().info("Deleting ThinkMap-Resources due to a format update");
@@ -126,6 +123,16 @@ public class ThinkMapPlugin extends JavaPlugin implements Runnable {
             }
         }
 
+        // Load worlds, after old ones are removed so the chunk
+        // index doesn't pick them up
+        for (World world : getServer().getWorlds()) {
+            if (targetWorld == null) {
+                targetWorld = world;
+                getChunkManager(world);
+                break; // TODO: Support multiple worlds
+            }
+        }
+
         // Save the updated config
         try {
             configuration.save();
@@ -252,6 +259,15 @@ public class ThinkMapPlugin extends JavaPlugin implements Runnable {
         if (channel != null) {
             channel.close();
         }
+        // Before the storage goes away under the running tasks
+        if (encodingExecutor != null) {
+            encodingExecutor.shutdown();
+        }
+        synchronized (chunkManagers) {
+            for (ChunkManager chunkManager : chunkManagers.values()) {
+                chunkManager.close();
+            }
+        }
     }
 
     public ChunkManager getChunkManager(World world) {
@@ -344,6 +360,15 @@ public class ThinkMapPlugin extends JavaPlugin implements Runnable {
         return new Date(startUpDate.getTime());
     }
 
+    /**
+     * Returns the pool used to encode chunks for the map viewer
+     *
+     * @return The encoding executor
+     */
+    public EncodingExecutor getEncodingExecutor() {
+        return encodingExecutor;
+    }
+
     /**
      * Returns the configuration for the map viewer
      *
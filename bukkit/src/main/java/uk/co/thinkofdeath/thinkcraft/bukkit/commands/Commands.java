@@ -17,21 +17,39 @@
 package uk.co.thinkofdeath.thinkcraft.bukkit.commands;
 
 import org.bukkit.ChatColor;
+import org.bukkit.Chunk;
+import org.bukkit.ChunkSnapshot;
 import org.bukkit.World;
 import org.bukkit.command.CommandSender;
 import org.bukkit.scheduler.BukkitRunnable;
+import org.bukkit.scheduler.BukkitTask;
 import uk.co.thinkofdeath.command.Command;
 import uk.co.thinkofdeath.command.CommandHandler;
 import uk.co.thinkofdeath.parsing.bukkit.validators.HasPermission;
-import uk.co.thinkofdeath.parsing.validators.Range;
 import uk.co.thinkofdeath.thinkcraft.bukkit.ThinkMapPlugin;
+import uk.co.thinkofdeath.thinkcraft.bukkit.world.AnvilImporter;
+import uk.co.thinkofdeath.thinkcraft.bukkit.world.ChunkCache;
+import uk.co.thinkofdeath.thinkcraft.bukkit.world.ChunkManager;
+import uk.co.thinkofdeath.thinkcraft.bukkit.world.ChunkPrefetcher;
+import uk.co.thinkofdeath.thinkcraft.bukkit.world.ChunkRefresher;
+import uk.co.thinkofdeath.thinkcraft.bukkit.world.ChunkSaveQueue;
+import uk.co.thinkofdeath.thinkcraft.bukkit.world.CompressionBenchmark;
+import uk.co.thinkofdeath.thinkcraft.bukkit.world.EncodingExecutor;
+import uk.co.thinkofdeath.thinkcraft.bukkit.world.LogChunkStorage;
+import uk.co.thinkofdeath.thinkcraft.bukkit.world.SnapshotScheduler;
 
-import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 @SuppressWarnings("unused")
 public class Commands implements CommandHandler {
 
     private final ThinkMapPlugin plugin;
+    // Worlds currently being imported
+    private final Set<String> importing = new HashSet<>();
 
     public Commands(ThinkMapPlugin plugin) {
         this.plugin = plugin;
@@ -47,76 +65,208 @@ public class Commands implements CommandHandler {
                 + " currently connected to the map viewer");
     }
 
-    @Command("thinkmap force-generate")
-    @HasPermission(value = "thinkmap.force-generate", wildcard = true)
-    public void forceGen(CommandSender sender) {
-        forceGen(sender, 2);
+    @Command("thinkmap stats")
+    @HasPermission(value = "thinkmap.stats", wildcard = true)
+    public void stats(CommandSender sender) {
+        ChunkManager chunkManager = plugin.getChunkManager(plugin.getTargetWorld());
+        ChunkSaveQueue saveQueue = chunkManager.getSaveQueue();
+        sender.sendMessage(ChatColor.AQUA + "Save queue: "
+                + saveQueue.getQueueDepth() + " pending, "
+                + saveQueue.getSavedCount() + " saved in "
+                + saveQueue.getBatchCount() + " batches, "
+                + saveQueue.getCoalescedCount() + " coalesced");
+        sender.sendMessage(ChatColor.AQUA + "Stored chunks: " + chunkManager.getIndex().getChunkCount()
+                + ", " + chunkManager.getSavesWritten() + " written, "
+                + chunkManager.getSavesSkipped() + " unchanged saves skipped, "
+                + chunkManager.getPiecesCompressed() + " sections compressed, "
+                + chunkManager.getPiecesReused() + " reused");
+        if (chunkManager.getStorage() instanceof LogChunkStorage) {
+            LogChunkStorage storage = (LogChunkStorage) chunkManager.getStorage();
+            sender.sendMessage(ChatColor.AQUA + "Log storage: "
+                    + storage.getSegmentCount() + " segments, "
+                    + (storage.getLiveBytes() / 1024) + "KB live of "
+                    + (storage.getTotalBytes() / 1024) + "KB, "
+                    + storage.getCompactionCount() + " compactions reclaimed "
+                    + (storage.getReclaimedBytes() / 1024) + "KB");
+        }
+        ChunkCache cache = chunkManager.getCache();
+        sender.sendMessage(ChatColor.AQUA + "Chunk cache: "
+                + (cache.getSize() / 1024) + "KB, "
+                + cache.getHits() + " hits, "
+                + cache.getMisses() + " misses, "
+                + chunkManager.getCoalescedRequests() + " coalesced requests");
+        ChunkRefresher refresher = chunkManager.getRefresher();
+        if (refresher != null) {
+            sender.sendMessage(ChatColor.AQUA + "Refresh: "
+                    + refresher.getTrackedCount() + " requested chunks, "
+                    + refresher.getRefreshedCount() + " refreshes, "
+                    + refresher.getServedFreshCount() + " requests served from storage");
+        }
+        ChunkPrefetcher prefetcher = chunkManager.getPrefetcher();
+        sender.sendMessage(ChatColor.AQUA + "Prefetch: "
+                + prefetcher.getPrefetchedCount() + " read, "
+                + prefetcher.getHits() + " used, "
+                + prefetcher.getWastedCount() + " wasted, "
+                + prefetcher.getDroppedCount() + " dropped, "
+                + String.format("%.1f%% hit rate", prefetcher.getHitRate() * 100));
+        EncodingExecutor encoder = plugin.getEncodingExecutor();
+        sender.sendMessage(ChatColor.AQUA + "Encoding: "
+                + encoder.getActiveCount() + "/" + encoder.getThreadCount() + " threads busy, "
+                + encoder.getQueueDepth() + " queued, "
+                + encoder.getCompletedCount() + " done, "
+                + encoder.getRejectedCount() + " rejected, "
+                + String.format("%.2fms average", encoder.getAverageTaskTime()));
+        SnapshotScheduler snapshots = chunkManager.getSnapshotScheduler();
+        sender.sendMessage(ChatColor.AQUA + "Snapshots: "
+                + snapshots.getPendingCount() + " pending, "
+                + snapshots.getSnapshotCount() + " taken, "
+                + snapshots.getRolledOverCount() + " rolled over, "
+                + String.format("%.2fms last tick, %.2fms average",
+                snapshots.getLastTickTime(), snapshots.getAverageTickTime()));
     }
 
-    @Command("thinkmap force-generate ?")
+    @Command("thinkmap benchmark compression")
+    @HasPermission(value = "thinkmap.benchmark", wildcard = true)
+    public void benchmarkCompression(final CommandSender sender) {
+        // Snapshots have to be taken on the main thread, the
+        // benchmark itself runs async
+        List<ChunkSnapshot> snapshots = new ArrayList<>();
+        for (Chunk chunk : plugin.getTargetWorld().getLoadedChunks()) {
+            snapshots.add(chunk.getChunkSnapshot(false, true, false));
+            if (snapshots.size() >= 256) {
+                break;
+            }
+        }
+        if (snapshots.isEmpty()) {
+            sender.sendMessage(ChatColor.RED + "No loaded chunks to benchmark with");
+            return;
+        }
+        sender.sendMessage(ChatColor.AQUA + "Benchmarking compression with "
+                + snapshots.size() + " chunks. This may take some time");
+        final CompressionBenchmark benchmark = new CompressionBenchmark(snapshots);
+        plugin.getServer().getScheduler().runTaskAsynchronously(plugin, new Runnable() {
+            @Override
+            public void run() {
+                final List<String> results = benchmark.run();
+                plugin.getServer().getScheduler().runTask(plugin, new Runnable() {
+                    @Override
+                    public void run() {
+                        for (String result : results) {
+                            sender.sendMessage(ChatColor.AQUA + result);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    @Command("thinkmap migrate region")
+    @HasPermission(value = "thinkmap.migrate", wildcard = true)
+    public void migrateRegion(CommandSender sender) {
+        migrate(sender, "region");
+    }
+
+    @Command("thinkmap migrate log")
+    @HasPermission(value = "thinkmap.migrate", wildcard = true)
+    public void migrateLog(CommandSender sender) {
+        migrate(sender, "log");
+    }
+
+    // Copies the target world's chunks from the named storage engine
+    // into the configured one
+    private void migrate(final CommandSender sender, final String engine) {
+        final ChunkManager chunkManager = plugin.getChunkManager(plugin.getTargetWorld());
+        sender.sendMessage("Migrating " + chunkManager.getWorld().getName() + " from the "
+                + engine + " storage engine - Please wait");
+        plugin.getServer().getScheduler().runTaskAsynchronously(plugin, new Runnable() {
+            @Override
+            public void run() {
+                String result;
+                try {
+                    result = "Migrated " + chunkManager.migrate(engine) + " chunks";
+                } catch (IOException e) {
+                    result = "Failed to migrate: " + e.getMessage();
+                }
+                final String message = result;
+                plugin.getServer().getScheduler().runTask(plugin, new Runnable() {
+                    @Override
+                    public void run() {
+                        sender.sendMessage(message);
+                    }
+                });
+            }
+        });
+    }
+
+    @Command("thinkmap force-generate")
     @HasPermission(value = "thinkmap.force-generate", wildcard = true)
-    public void forceGen(CommandSender sender, @Range(min = 1) int regionsPerCycle) {
+    public void forceGen(CommandSender sender) {
         for (World world : plugin.getServer().getWorlds()) {
-            forceGen(sender, world, regionsPerCycle);
+            importWorld(sender, world, false);
         }
     }
 
     @Command("thinkmap force-generate ?")
     @HasPermission(value = "thinkmap.force-generate", wildcard = true)
     public void forceGen(CommandSender sender, World target) {
-        forceGen(sender, target, 2);
+        importWorld(sender, target, false);
     }
 
-    @Command("thinkmap force-generate ? ?")
+    @Command("thinkmap update-generated")
     @HasPermission(value = "thinkmap.force-generate", wildcard = true)
-    public void forceGen(final CommandSender sender, final World world, @Range(min = 1) final int regionsPerCycle) {
-        sender.sendMessage("Generating world data for " + world.getName() + " - Please wait, this may cause lag");
-        new BukkitRunnable() {
-            private int currentRegion = 0;
+    public void updateGen(CommandSender sender) {
+        for (World world : plugin.getServer().getWorlds()) {
+            importWorld(sender, world, true);
+        }
+    }
+
+    @Command("thinkmap update-generated ?")
+    @HasPermission(value = "thinkmap.force-generate", wildcard = true)
+    public void updateGen(CommandSender sender, World target) {
+        importWorld(sender, target, true);
+    }
 
+    // Imports the world's region files off the main thread, reporting
+    // progress until it completes
+    private void importWorld(final CommandSender sender, final World world, boolean incremental) {
+        synchronized (importing) {
+            if (!importing.add(world.getName())) {
+                sender.sendMessage(ChatColor.RED + world.getName() + " is already being imported");
+                return;
+            }
+        }
+        sender.sendMessage("Generating world data for " + world.getName() + " - Please wait");
+        final AnvilImporter importer = new AnvilImporter(plugin.getChunkManager(world), incremental);
+        final BukkitTask progress = new BukkitRunnable() {
             @Override
             public void run() {
-                File worldFolder = new File(world.getWorldFolder(), "region");
-                if (!worldFolder.exists()) {
-                    // handle nether/end
-                    worldFolder = new File(world.getWorldFolder(), String.format("DIM%d/region", world.getEnvironment().getId()));
-                    if (!worldFolder.exists()) {
-                        sender.sendMessage("Failed to generate: " + world.getName());
-                        return;
-                    }
+                sender.sendMessage(String.format("Progress: %d/%d", importer.getCompletedRegions(), importer.getRegionCount()));
+            }
+        }.runTaskTimer(plugin, 20 * 10, 20 * 10);
+        plugin.getServer().getScheduler().runTaskAsynchronously(plugin, new Runnable() {
+            @Override
+            public void run() {
+                String result;
+                try {
+                    importer.run();
+                    result = String.format("Complete: %d chunks imported, %d skipped, %d failed, %d regions failed",
+                            importer.getImportedCount(), importer.getSkippedCount(), importer.getFailedCount(),
+                            importer.getFailedRegionCount());
+                } catch (IOException e) {
+                    result = "Failed to generate: " + world.getName() + " - " + e.getMessage();
                 }
-                String[] regions = worldFolder.list();
-                int count = 0;
-                for (; currentRegion < regions.length; currentRegion++) {
-                    String region = regions[currentRegion];
-                    if (!region.endsWith(".mca")) {
-                        continue;
-                    }
-                    String[] parts = region.split("\\.");
-                    int rx = Integer.parseInt(parts[1]);
-                    int rz = Integer.parseInt(parts[2]);
-                    for (int x = 0; x < 32; x++) {
-                        for (int z = 0; z < 32; z++) {
-                            int cx = (rx << 5) + x;
-                            int cz = (rz << 5) + z;
-                            boolean unload = !world.isChunkLoaded(cx, cz);
-                            if (world.loadChunk(cx, cz, false)) {
-                                world.getChunkAt(cx, cz); // Trigger a chunk load
-                                if (unload) {
-                                    world.unloadChunkRequest(cx, cz);
-                                }
-                            }
-                        }
-                    }
-                    sender.sendMessage(String.format("Progress: %d/%d", currentRegion, regions.length));
-                    if (count++ > regionsPerCycle) {
-                        return;
-                    }
+                synchronized (importing) {
+                    importing.remove(world.getName());
                 }
-                currentRegion = 0;
-                sender.sendMessage("Complete");
-                cancel();
+                final String message = result;
+                plugin.getServer().getScheduler().runTask(plugin, new Runnable() {
+                    @Override
+                    public void run() {
+                        progress.cancel();
+                        sender.sendMessage(message);
+                    }
+                });
             }
-        }.runTaskTimer(plugin, 0, 10);
+        });
     }
 }
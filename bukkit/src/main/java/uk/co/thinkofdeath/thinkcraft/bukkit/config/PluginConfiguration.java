@@ -25,14 +25,46 @@ public class PluginConfiguration extends ThinkConfig {
     private int port = 23333;
     @ConfigField("webserver.bind-address")
     private String address = "0.0.0.0";
+    @ConfigField("webserver.chunk-cache-control")
+    private String chunkCacheControl = "public, no-cache";
 
     // Resources
     @ConfigField("resources.pack-name")
     private String resourcePackName = "";
 
+    // Storage
+    @ConfigField("storage.engine")
+    private String storageEngine = "region";
+    @ConfigField("storage.log-segment-mb")
+    private int logSegmentSize = 64;
+    @ConfigField("storage.max-open-regions")
+    private int maxOpenRegions = 32;
+    @ConfigField("storage.save-threads")
+    private int saveThreads = 2;
+    @ConfigField("storage.compression-level")
+    private int compressionLevel = 6;
+    @ConfigField("storage.chunk-cache-mb")
+    private int chunkCacheSize = 32;
+    @ConfigField("storage.snapshot-budget-ms")
+    private double snapshotBudget = 2;
+    @ConfigField("storage.refresh-max-staleness-seconds")
+    private double refreshMaxStaleness = 0;
+    @ConfigField("storage.prefetch-radius")
+    private int prefetchRadius = 1;
+    @ConfigField("storage.prefetch-cache-mb")
+    private int prefetchCacheSize = 8;
+    @ConfigField("storage.encode-threads")
+    private int encodeThreads = 0;
+    @ConfigField("storage.encode-queue")
+    private int encodeQueueSize = 512;
+
     // Client settings
     @ConfigField("client.hide-ores")
     private boolean hideOres = false;
+    @ConfigField("client.stream-chunks")
+    private boolean streamChunks = true;
+    @ConfigField("client.stream-window")
+    private int streamWindow = 8;
 
     // Internal
     @ConfigField("no-touchy.resource-version")
@@ -60,6 +92,14 @@ public class PluginConfiguration extends ThinkConfig {
         this.address = address;
     }
 
+    public String getChunkCacheControl() {
+        return chunkCacheControl;
+    }
+
+    public void setChunkCacheControl(String chunkCacheControl) {
+        this.chunkCacheControl = chunkCacheControl;
+    }
+
     public String getResourcePackName() {
         return resourcePackName;
     }
@@ -68,6 +108,102 @@ public class PluginConfiguration extends ThinkConfig {
         this.resourcePackName = resourcePackName;
     }
 
+    public String getStorageEngine() {
+        return storageEngine;
+    }
+
+    public void setStorageEngine(String storageEngine) {
+        this.storageEngine = storageEngine;
+    }
+
+    public int getLogSegmentSize() {
+        return logSegmentSize;
+    }
+
+    public void setLogSegmentSize(int logSegmentSize) {
+        this.logSegmentSize = logSegmentSize;
+    }
+
+    public int getMaxOpenRegions() {
+        return maxOpenRegions;
+    }
+
+    public void setMaxOpenRegions(int maxOpenRegions) {
+        this.maxOpenRegions = maxOpenRegions;
+    }
+
+    public int getSaveThreads() {
+        return saveThreads;
+    }
+
+    public void setSaveThreads(int saveThreads) {
+        this.saveThreads = saveThreads;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
+    public int getChunkCacheSize() {
+        return chunkCacheSize;
+    }
+
+    public void setChunkCacheSize(int chunkCacheSize) {
+        this.chunkCacheSize = chunkCacheSize;
+    }
+
+    public double getSnapshotBudget() {
+        return snapshotBudget;
+    }
+
+    public void setSnapshotBudget(double snapshotBudget) {
+        this.snapshotBudget = snapshotBudget;
+    }
+
+    public double getRefreshMaxStaleness() {
+        return refreshMaxStaleness;
+    }
+
+    public void setRefreshMaxStaleness(double refreshMaxStaleness) {
+        this.refreshMaxStaleness = refreshMaxStaleness;
+    }
+
+    public int getPrefetchRadius() {
+        return prefetchRadius;
+    }
+
+    public void setPrefetchRadius(int prefetchRadius) {
+        this.prefetchRadius = prefetchRadius;
+    }
+
+    public int getPrefetchCacheSize() {
+        return prefetchCacheSize;
+    }
+
+    public void setPrefetchCacheSize(int prefetchCacheSize) {
+        this.prefetchCacheSize = prefetchCacheSize;
+    }
+
+    public int getEncodeThreads() {
+        return encodeThreads;
+    }
+
+    public void setEncodeThreads(int encodeThreads) {
+        this.encodeThreads = encodeThreads;
+    }
+
+    public int getEncodeQueueSize() {
+        return encodeQueueSize;
+    }
+
+    public void setEncodeQueueSize(int encodeQueueSize) {
+        this.encodeQueueSize = encodeQueueSize;
+    }
+
     public boolean shouldHideOres() {
         return hideOres;
     }
@@ -76,6 +212,22 @@ public class PluginConfiguration extends ThinkConfig {
         this.hideOres = hideOres;
     }
 
+    public boolean shouldStreamChunks() {
+        return streamChunks;
+    }
+
+    public void setStreamChunks(boolean streamChunks) {
+        this.streamChunks = streamChunks;
+    }
+
+    public int getStreamWindow() {
+        return streamWindow;
+    }
+
+    public void setStreamWindow(int streamWindow) {
+        this.streamWindow = streamWindow;
+    }
+
     public int getResourceVersion() {
         return resourceVersion;
     }
@@ -80,4 +80,16 @@ public class ByteBufPacketStream implements PacketStream {
     public boolean readBoolean() {
         return in.readUnsignedByte() != 0;
     }
+
+    @Override
+    public void writeBytes(byte[] b) {
+        in.writeBytes(b);
+    }
+
+    @Override
+    public byte[] readBytes(int length) {
+        byte[] bytes = new byte[length];
+        in.readBytes(bytes);
+        return bytes;
+    }
 }
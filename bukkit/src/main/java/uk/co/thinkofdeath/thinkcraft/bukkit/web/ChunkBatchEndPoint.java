@@ -0,0 +1,231 @@
+/*
+ * Copyright 2014 Matthew Collins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.thinkofdeath.thinkcraft.bukkit.web;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.FutureListener;
+import org.apache.commons.io.Charsets;
+import uk.co.thinkofdeath.thinkcraft.bukkit.ThinkMapPlugin;
+import uk.co.thinkofdeath.thinkcraft.bukkit.world.ChunkCompressor;
+import uk.co.thinkofdeath.thinkcraft.bukkit.world.ChunkManager;
+
+import java.net.URI;
+import java.util.logging.Level;
+import java.util.zip.CRC32;
+
+import static io.netty.handler.codec.http.HttpHeaders.Names.CONNECTION;
+import static io.netty.handler.codec.http.HttpHeaders.isKeepAlive;
+import static io.netty.handler.codec.http.HttpMethod.OPTIONS;
+import static io.netty.handler.codec.http.HttpMethod.POST;
+import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
+import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
+
+/**
+ * Serves many chunks in one request. The request body is a comma
+ * separated list of x:z positions and the chunks are streamed back
+ * in the order they become ready, each framed as
+ * <pre>
+ * i32      x
+ * i32      z
+ * i32      length, 0 if the chunk doesn't exist
+ * u8[]     the encoded chunk
+ * </pre>
+ * The response is a single gzip stream built by joining the already
+ * compressed chunks with the frame headers stored uncompressed in
+ * between, so chunks are never decompressed or compressed again.
+ */
+public class ChunkBatchEndPoint extends EndPoint {
+
+    /**
+     * The most chunks that may be requested at once
+     */
+    public static final int MAX_BATCH_SIZE = 256;
+
+    private static final int FRAME_HEADER_SIZE = 12;
+
+    private final ThinkMapPlugin plugin;
+
+    public ChunkBatchEndPoint(ThinkMapPlugin plugin) {
+        this.plugin = plugin;
+    }
+
+    @Override
+    public void handle(final ChannelHandlerContext context, URI uri, final FullHttpRequest request) {
+        if (request.getMethod() != POST) {
+            FullHttpResponse response = new DefaultFullHttpResponse(HTTP_1_1, OK);
+            addCorsHeaders(request, response);
+            sendHttpResponse(context, request, response);
+            return;
+        }
+        int[] positions;
+        try {
+            positions = parsePositions(request.content().toString(Charsets.UTF_8));
+        } catch (IllegalArgumentException e) {
+            sendHttpResponse(context, request, new DefaultFullHttpResponse(HTTP_1_1, BAD_REQUEST));
+            return;
+        }
+
+        HttpResponse response = new DefaultHttpResponse(HTTP_1_1, OK);
+        addCorsHeaders(request, response);
+        response.headers().add("Content-Type", "application/octet-stream");
+        response.headers().add("Content-Encoding", "gzip");
+        HttpHeaders.setTransferEncodingChunked(response);
+        if (isKeepAlive(request)) {
+            response.headers().set(CONNECTION, HttpHeaders.Values.KEEP_ALIVE);
+        }
+        context.write(response);
+        ByteBuf header = context.alloc().buffer(ChunkCompressor.HEADER_SIZE);
+        ChunkCompressor.writeHeader(header);
+        context.writeAndFlush(new DefaultHttpContent(header));
+
+        final Batch batch = new Batch(context, request, positions.length / 2);
+        if (positions.length == 0) {
+            batch.finish();
+            return;
+        }
+        ChunkManager chunkManager = plugin.getChunkManager(plugin.getTargetWorld());
+        for (int i = 0; i < positions.length; i += 2) {
+            final int x = positions[i];
+            final int z = positions[i + 1];
+            chunkManager.getChunkBytes(x, z, context.executor())
+                    .addListener(new FutureListener<ByteBuf>() {
+                        @Override
+                        public void operationComplete(Future<ByteBuf> future) throws Exception {
+                            ByteBuf out = null;
+                            if (future.isSuccess()) {
+                                out = future.getNow();
+                            } else {
+                                plugin.getLogger().log(Level.WARNING, "Failed to get chunk", future.cause());
+                            }
+                            batch.add(x, z, out);
+                        }
+                    });
+        }
+    }
+
+    private static int[] parsePositions(String body) {
+        if (body.isEmpty()) {
+            return new int[0];
+        }
+        String[] entries = body.split(",");
+        if (entries.length > MAX_BATCH_SIZE) {
+            throw new IllegalArgumentException("Too many chunks requested");
+        }
+        int[] positions = new int[entries.length * 2];
+        for (int i = 0; i < entries.length; i++) {
+            String[] args = entries[i].split(":");
+            if (args.length != 2) {
+                throw new IllegalArgumentException("Invalid position " + entries[i]);
+            }
+            // NumberFormatException is an IllegalArgumentException
+            positions[i * 2] = Integer.parseInt(args[0]);
+            positions[i * 2 + 1] = Integer.parseInt(args[1]);
+        }
+        return positions;
+    }
+
+    private static void addCorsHeaders(FullHttpRequest request, HttpResponse response) {
+        response.headers().add("Access-Control-Allow-Origin", "*");
+        response.headers().add("Access-Control-Allow-Methods", "POST");
+        if (request.getMethod() == OPTIONS) {
+            response.headers().add("Access-Control-Allow-Headers", "origin, content-type, accept");
+        }
+    }
+
+    // The state of a streaming response, only used on the channel's
+    // event loop
+    private static class Batch {
+        private final ChannelHandlerContext context;
+        private final FullHttpRequest request;
+        private int remaining;
+        // The crc32 and length of the uncompressed response so far
+        private int crc;
+        private long length;
+
+        private Batch(ChannelHandlerContext context, FullHttpRequest request, int count) {
+            this.context = context;
+            this.request = request;
+            remaining = count;
+        }
+
+        private void add(int x, int z, ByteBuf data) {
+            int dataCrc = 0;
+            int dataLength = 0;
+            ByteBuf body = null;
+            if (data != null) {
+                // Take the deflated blocks out of the chunk's stream
+                int end = data.writerIndex();
+                dataCrc = Integer.reverseBytes(data.getInt(end - 8));
+                dataLength = Integer.reverseBytes(data.getInt(end - 4));
+                body = data.slice(data.readerIndex() + ChunkCompressor.HEADER_SIZE,
+                        data.readableBytes() - ChunkCompressor.HEADER_SIZE - ChunkCompressor.TAIL_SIZE);
+            }
+
+            byte[] header = new byte[FRAME_HEADER_SIZE];
+            Unpooled.wrappedBuffer(header).clear()
+                    .writeInt(x)
+                    .writeInt(z)
+                    .writeInt(dataLength);
+            CRC32 headerCrc = new CRC32();
+            headerCrc.update(header);
+            crc = ChunkCompressor.combineCrc(crc, (int) headerCrc.getValue(), FRAME_HEADER_SIZE);
+            crc = ChunkCompressor.combineCrc(crc, dataCrc, dataLength);
+            length += FRAME_HEADER_SIZE + dataLength;
+
+            // The frame header goes in a non-final stored block
+            ByteBuf frame = context.alloc().buffer(5 + FRAME_HEADER_SIZE);
+            frame.writeByte(0);
+            frame.writeByte(FRAME_HEADER_SIZE);
+            frame.writeByte(0);
+            frame.writeByte(~FRAME_HEADER_SIZE);
+            frame.writeByte(0xFF);
+            frame.writeBytes(header);
+            // The body is a slice of data so releasing the content
+            // releases the chunk
+            ByteBuf content = body != null ? Unpooled.wrappedBuffer(frame, body) : frame;
+            context.writeAndFlush(new DefaultHttpContent(content));
+
+            remaining--;
+            if (remaining == 0) {
+                finish();
+            }
+        }
+
+        private void finish() {
+            ByteBuf tail = context.alloc().buffer(ChunkCompressor.TAIL_SIZE);
+            ChunkCompressor.finish(tail, crc, (int) length);
+            ChannelFuture future = context.writeAndFlush(new DefaultLastHttpContent(tail));
+            if (!isKeepAlive(request)) {
+                future.addListener(ChannelFutureListener.CLOSE);
+            }
+        }
+    }
+}
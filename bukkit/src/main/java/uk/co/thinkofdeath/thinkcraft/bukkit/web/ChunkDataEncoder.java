@@ -0,0 +1,49 @@
+/*
+ * Copyright 2014 Matthew Collins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.thinkofdeath.thinkcraft.bukkit.web;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToMessageEncoder;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import uk.co.thinkofdeath.thinkcraft.protocol.Packets;
+import uk.co.thinkofdeath.thinkcraft.protocol.packets.ChunkData;
+
+import java.util.List;
+
+/**
+ * Encodes {@link ChunkDataFrame}s the same way {@link PacketEncoder}
+ * encodes {@link ChunkData} but wraps the chunk's buffer behind the
+ * header instead of copying it
+ */
+public class ChunkDataEncoder extends MessageToMessageEncoder<ChunkDataFrame> {
+
+    private static final int PACKET_ID = Packets.getServerPacketId(new ChunkData());
+
+    @Override
+    protected void encode(ChannelHandlerContext ctx, ChunkDataFrame msg, List<Object> out) throws Exception {
+        ByteBuf data = msg.content();
+        ByteBuf header = ctx.alloc().buffer(13);
+        header.writeByte(PACKET_ID);
+        header.writeInt(msg.getX());
+        header.writeInt(msg.getZ());
+        header.writeInt(data.readableBytes());
+        // The frame is released once this returns
+        out.add(new BinaryWebSocketFrame(Unpooled.wrappedBuffer(header, data.retain())));
+    }
+}
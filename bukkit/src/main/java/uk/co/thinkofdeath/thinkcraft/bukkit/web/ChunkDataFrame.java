@@ -0,0 +1,55 @@
+/*
+ * Copyright 2014 Matthew Collins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.thinkofdeath.thinkcraft.bukkit.web;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.DefaultByteBufHolder;
+
+/**
+ * The server side form of {@link uk.co.thinkofdeath.thinkcraft.protocol.packets.ChunkData}
+ * which holds the stored chunk's buffer instead of a copy of it. The
+ * buffer is released once the frame has been written
+ */
+public class ChunkDataFrame extends DefaultByteBufHolder {
+
+    private final int x;
+    private final int z;
+
+    /**
+     * Creates a frame for the chunk, taking ownership of the buffer
+     *
+     * @param x
+     *         The x position of the chunk
+     * @param z
+     *         The z position of the chunk
+     * @param data
+     *         The gzip'd chunk
+     */
+    public ChunkDataFrame(int x, int z, ByteBuf data) {
+        super(data);
+        this.x = x;
+        this.z = z;
+    }
+
+    public int getX() {
+        return x;
+    }
+
+    public int getZ() {
+        return z;
+    }
+}
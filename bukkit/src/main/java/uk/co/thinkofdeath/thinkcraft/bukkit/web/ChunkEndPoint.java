@@ -21,10 +21,13 @@ import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
 import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.FutureListener;
 import org.apache.commons.io.Charsets;
 import uk.co.thinkofdeath.thinkcraft.bukkit.ThinkMapPlugin;
 
 import java.net.URI;
+import java.util.logging.Level;
 
 import static io.netty.handler.codec.http.HttpMethod.OPTIONS;
 import static io.netty.handler.codec.http.HttpMethod.POST;
@@ -40,22 +43,43 @@ public class ChunkEndPoint extends EndPoint {
     }
 
     @Override
-    public void handle(ChannelHandlerContext context, URI uri, FullHttpRequest request) {
-        FullHttpResponse response = new DefaultFullHttpResponse(HTTP_1_1, OK, context.alloc().buffer());
+    public void handle(final ChannelHandlerContext context, URI uri, final FullHttpRequest request) {
+        if (request.getMethod() == POST) {
+            String[] args = request.content().toString(Charsets.UTF_8).split(":");
+            // The response is sent once the chunk is ready instead of
+            // waiting on the event loop
+            plugin.getChunkManager(plugin.getTargetWorld())
+                    .getChunkBytes(Integer.parseInt(args[0]), Integer.parseInt(args[1]), context.executor())
+                    .addListener(new FutureListener<ByteBuf>() {
+                        @Override
+                        public void operationComplete(Future<ByteBuf> future) throws Exception {
+                            ByteBuf out = null;
+                            if (future.isSuccess()) {
+                                out = future.getNow();
+                            } else {
+                                plugin.getLogger().log(Level.WARNING, "Failed to get chunk", future.cause());
+                            }
+                            respond(context, request, out);
+                        }
+                    });
+            return;
+        }
+        respond(context, request, null);
+    }
+
+    private void respond(ChannelHandlerContext context, FullHttpRequest request, ByteBuf out) {
+        FullHttpResponse response = new DefaultFullHttpResponse(HTTP_1_1, OK,
+                out != null ? out : context.alloc().buffer());
         response.headers().add("Access-Control-Allow-Origin", "*");
         response.headers().add("Access-Control-Allow-Methods", "POST");
         if (request.getMethod() == OPTIONS) {
             response.headers().add("Access-Control-Allow-Headers", "origin, content-type, accept");
         }
 
-        if (request.getMethod() == POST) {
-            String[] args = request.content().toString(Charsets.UTF_8).split(":");
-            ByteBuf out = response.content();
-            if (plugin.getChunkManager(plugin.getTargetWorld()).getChunkBytes(Integer.parseInt(args[0]), Integer.parseInt(args[1]), out)) {
-                response.headers().add("Content-Encoding", "gzip");
-            } else {
-                out.writeBytes(new byte[1]);
-            }
+        if (out != null) {
+            response.headers().add("Content-Encoding", "gzip");
+        } else if (request.getMethod() == POST) {
+            response.content().writeBytes(new byte[1]);
         }
         sendHttpResponse(context, request, response);
     }
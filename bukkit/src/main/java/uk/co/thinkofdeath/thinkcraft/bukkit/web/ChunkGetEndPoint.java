@@ -0,0 +1,149 @@
+/*
+ * Copyright 2014 Matthew Collins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.thinkofdeath.thinkcraft.bukkit.web;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.FutureListener;
+import uk.co.thinkofdeath.thinkcraft.bukkit.ThinkMapPlugin;
+import uk.co.thinkofdeath.thinkcraft.bukkit.world.ChunkManager;
+
+import java.net.URI;
+import java.util.logging.Level;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static io.netty.handler.codec.http.HttpHeaders.Names.CACHE_CONTROL;
+import static io.netty.handler.codec.http.HttpHeaders.Names.ETAG;
+import static io.netty.handler.codec.http.HttpHeaders.Names.IF_NONE_MATCH;
+import static io.netty.handler.codec.http.HttpMethod.GET;
+import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
+import static io.netty.handler.codec.http.HttpResponseStatus.NOT_MODIFIED;
+import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
+
+/**
+ * Serves a single chunk at /server/chunk/{x}/{z} so that browsers and
+ * proxies can cache it.
+ * <p>
+ * Responses carry a strong ETag based on the chunk's live version or
+ * the hash of its stored copy (see
+ * {@link ChunkManager#getChunkTag(int, int)}), so a matching
+ * If-None-Match is answered with a 304 without reading or
+ * compressing anything.
+ */
+public class ChunkGetEndPoint extends EndPoint {
+
+    /**
+     * The paths handled by this end point
+     */
+    public static final Pattern PATH = Pattern.compile("^/server/chunk/(-?\\d+)/(-?\\d+)$");
+
+    private final ThinkMapPlugin plugin;
+
+    public ChunkGetEndPoint(ThinkMapPlugin plugin) {
+        this.plugin = plugin;
+    }
+
+    @Override
+    public void handle(final ChannelHandlerContext context, URI uri, final FullHttpRequest request) {
+        if (request.getMethod() != GET) {
+            FullHttpResponse response = new DefaultFullHttpResponse(HTTP_1_1, OK);
+            addCorsHeaders(response);
+            sendHttpResponse(context, request, response);
+            return;
+        }
+        Matcher matcher = PATH.matcher(uri.getPath());
+        if (!matcher.matches()) {
+            sendHttpResponse(context, request, new DefaultFullHttpResponse(HTTP_1_1, BAD_REQUEST));
+            return;
+        }
+        int x;
+        int z;
+        try {
+            x = Integer.parseInt(matcher.group(1));
+            z = Integer.parseInt(matcher.group(2));
+        } catch (NumberFormatException e) {
+            // Out of range
+            sendHttpResponse(context, request, new DefaultFullHttpResponse(HTTP_1_1, BAD_REQUEST));
+            return;
+        }
+
+        ChunkManager chunkManager = plugin.getChunkManager(plugin.getTargetWorld());
+        // Only used to skip the read, the response is tagged with the
+        // copy that was actually read
+        String etag = quote(chunkManager.getChunkTag(x, z));
+        if (etag != null && matchesTag(request.headers().get(IF_NONE_MATCH), etag)) {
+            FullHttpResponse response = new DefaultFullHttpResponse(HTTP_1_1, NOT_MODIFIED);
+            addCacheHeaders(response, etag);
+            sendHttpResponse(context, request, response);
+            return;
+        }
+
+        chunkManager.getChunkBytes(x, z, context.executor())
+                .addListener(new FutureListener<ByteBuf>() {
+                    @Override
+                    public void operationComplete(Future<ByteBuf> future) throws Exception {
+                        ByteBuf out = null;
+                        if (future.isSuccess()) {
+                            out = future.getNow();
+                        } else {
+                            plugin.getLogger().log(Level.WARNING, "Failed to get chunk", future.cause());
+                        }
+                        FullHttpResponse response;
+                        if (out != null) {
+                            response = new DefaultFullHttpResponse(HTTP_1_1, OK, out);
+                            response.headers().add("Content-Encoding", "gzip");
+                            addCacheHeaders(response, quote(ChunkManager.getDataTag(future)));
+                        } else {
+                            // The chunk may be generated later
+                            response = new DefaultFullHttpResponse(HTTP_1_1, OK, context.alloc().buffer(1));
+                            response.content().writeByte(0);
+                            response.headers().add(CACHE_CONTROL, "no-cache");
+                            addCorsHeaders(response);
+                        }
+                        response.headers().add("Content-Type", "application/octet-stream");
+                        sendHttpResponse(context, request, response);
+                    }
+                });
+    }
+
+    private void addCacheHeaders(FullHttpResponse response, String etag) {
+        addCorsHeaders(response);
+        if (etag != null) {
+            response.headers().add(ETAG, etag);
+            response.headers().add(CACHE_CONTROL, plugin.getConfiguration().getChunkCacheControl());
+        } else {
+            response.headers().add(CACHE_CONTROL, "no-cache");
+        }
+    }
+
+    private static void addCorsHeaders(FullHttpResponse response) {
+        response.headers().add("Access-Control-Allow-Origin", "*");
+        response.headers().add("Access-Control-Allow-Methods", "GET");
+        response.headers().add("Access-Control-Allow-Headers", "origin, accept, if-none-match");
+        response.headers().add("Access-Control-Expose-Headers", "etag");
+    }
+
+    private static String quote(String tag) {
+        return tag != null ? "\"" + tag + "\"" : null;
+    }
+}
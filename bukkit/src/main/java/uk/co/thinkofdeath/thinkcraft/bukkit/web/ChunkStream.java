@@ -0,0 +1,230 @@
+/*
+ * Copyright 2014 Matthew Collins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.thinkofdeath.thinkcraft.bukkit.web;
+
+import gnu.trove.iterator.TLongIterator;
+import gnu.trove.set.TLongSet;
+import gnu.trove.set.hash.TLongHashSet;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.FutureListener;
+import uk.co.thinkofdeath.thinkcraft.bukkit.ThinkMapPlugin;
+import uk.co.thinkofdeath.thinkcraft.bukkit.world.ChunkManager;
+import uk.co.thinkofdeath.thinkcraft.protocol.packets.ChunkData;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Level;
+
+/**
+ * Pushes the chunks around a viewer's camera over its WebSocket,
+ * nearest first.
+ * <p>
+ * At most window chunks are loaded or being written at once and no
+ * more are started while the channel isn't writable, so a slow
+ * viewer only holds a few chunks in memory and the order can follow
+ * the camera as it moves. Chunks are sent gzip'd exactly as they are
+ * stored, without copying them, and the client inflates them in its
+ * workers. Chunks that don't exist are sent without any data so the
+ * client knows not to wait for them. Chunks that
+ * fail to load are forgotten so they are tried again the next time
+ * the view moves.
+ * All methods must be called on the channel's event loop.
+ */
+public class ChunkStream {
+
+    // Limits the work a single client can ask for
+    private static final int MAX_VIEW_DISTANCE = 32;
+
+    private final Channel channel;
+    private final ThinkMapPlugin plugin;
+    private final int window;
+
+    private boolean hasView;
+    private int viewX;
+    private int viewZ;
+    private int viewDistance;
+    // Chunks which have been sent or are on their way
+    private final TLongSet sent = new TLongHashSet();
+    private final ArrayDeque<int[]> queue = new ArrayDeque<>();
+    private int inFlight;
+    private boolean closed;
+
+    /**
+     * Creates a chunk stream for the channel
+     *
+     * @param channel
+     *         The channel to send chunks to
+     * @param plugin
+     *         The plugin to load the chunks from
+     * @param window
+     *         The most chunks that may be loading or waiting to be
+     *         written at once
+     */
+    public ChunkStream(Channel channel, ThinkMapPlugin plugin, int window) {
+        this.channel = channel;
+        this.plugin = plugin;
+        this.window = Math.max(1, window);
+    }
+
+    /**
+     * Moves the view to the new position, forgetting about chunks
+     * that left it and queuing the chunks that haven't been sent yet
+     *
+     * @param x
+     *         The x position of the chunk the camera is in
+     * @param z
+     *         The z position of the chunk the camera is in
+     * @param distance
+     *         The view distance in chunks
+     */
+    public void setView(int x, int z, int distance) {
+        if (closed) {
+            return;
+        }
+        hasView = true;
+        viewX = x;
+        viewZ = z;
+        viewDistance = Math.min(distance, MAX_VIEW_DISTANCE);
+
+        // The client unloads chunks which leave its view so they
+        // have to be sent again if they come back
+        for (TLongIterator it = sent.iterator(); it.hasNext(); ) {
+            long key = it.next();
+            if (!inView((int) (key >> 32), (int) key)) {
+                it.remove();
+            }
+        }
+
+        List<int[]> positions = new ArrayList<>();
+        for (int cx = x - viewDistance; cx < x + viewDistance; cx++) {
+            for (int cz = z - viewDistance; cz < z + viewDistance; cz++) {
+                if (!sent.contains(key(cx, cz))) {
+                    positions.add(new int[]{cx, cz});
+                }
+            }
+        }
+        Collections.sort(positions, new Comparator<int[]>() {
+            @Override
+            public int compare(int[] o1, int[] o2) {
+                return Long.compare(distance(o1), distance(o2));
+            }
+        });
+        queue.clear();
+        queue.addAll(positions);
+        pump();
+    }
+
+    /**
+     * Starts loading queued chunks until the window is full or the
+     * channel stops being writable
+     */
+    public void pump() {
+        ChunkManager chunkManager = null;
+        while (!closed && inFlight < window && channel.isWritable() && !queue.isEmpty()) {
+            int[] pos = queue.poll();
+            final int x = pos[0];
+            final int z = pos[1];
+            if (chunkManager == null) {
+                chunkManager = plugin.getChunkManager(plugin.getTargetWorld());
+            }
+            sent.add(key(x, z));
+            inFlight++;
+            chunkManager.getChunkBytes(x, z, channel.eventLoop())
+                    .addListener(new FutureListener<ByteBuf>() {
+                        @Override
+                        public void operationComplete(Future<ByteBuf> future) throws Exception {
+                            boolean writing = false;
+                            try {
+                                if (future.isSuccess()) {
+                                    writing = send(x, z, future.getNow());
+                                } else {
+                                    plugin.getLogger().log(Level.WARNING, "Failed to get chunk", future.cause());
+                                    sent.remove(key(x, z));
+                                }
+                            } finally {
+                                if (!writing) {
+                                    inFlight--;
+                                    pump();
+                                }
+                            }
+                        }
+                    });
+        }
+    }
+
+    // Writes the chunk, or an empty chunk if buf is null, and returns
+    // whether it will complete the chunk once written. The buffer is
+    // always released
+    private boolean send(final int x, final int z, ByteBuf buf) {
+        if (closed || !inView(x, z)) {
+            if (buf != null) {
+                buf.release();
+            }
+            return false;
+        }
+        Object msg = buf != null
+                ? new ChunkDataFrame(x, z, buf)
+                : new ChunkData(x, z, new byte[0]);
+        channel.writeAndFlush(msg).addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                if (!future.isSuccess() && !closed) {
+                    sent.remove(key(x, z));
+                }
+                inFlight--;
+                pump();
+            }
+        });
+        return true;
+    }
+
+    private boolean inView(int x, int z) {
+        return hasView
+                && x >= viewX - viewDistance && x < viewX + viewDistance
+                && z >= viewZ - viewDistance && z < viewZ + viewDistance;
+    }
+
+    private static long key(int x, int z) {
+        return ((long) x << 32) | (z & 0xFFFFFFFFL);
+    }
+
+    private long distance(int[] pos) {
+        long dx = pos[0] - viewX;
+        long dz = pos[1] - viewZ;
+        return dx * dx + dz * dz;
+    }
+
+    /**
+     * Stops the stream, chunks that are still loading are dropped
+     * once they complete
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        queue.clear();
+        sent.clear();
+    }
+}
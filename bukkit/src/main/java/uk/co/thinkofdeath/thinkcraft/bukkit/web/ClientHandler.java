@@ -29,10 +29,14 @@ public class ClientHandler extends SimpleChannelInboundHandler<Packet<ClientPack
 
     private final Channel channel;
     private final ThinkMapPlugin plugin;
+    private final ChunkStream chunkStream;
 
     public ClientHandler(Channel channel, ThinkMapPlugin plugin) {
         this.channel = channel;
         this.plugin = plugin;
+        chunkStream = plugin.getConfiguration().shouldStreamChunks()
+                ? new ChunkStream(channel, plugin, plugin.getConfiguration().getStreamWindow())
+                : null;
     }
 
     @Override
@@ -40,13 +44,30 @@ public class ClientHandler extends SimpleChannelInboundHandler<Packet<ClientPack
         msg.handle(this);
     }
 
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if (chunkStream != null) {
+            chunkStream.pump();
+        }
+        super.channelWritabilityChanged(ctx);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        if (chunkStream != null) {
+            chunkStream.close();
+        }
+        super.channelInactive(ctx);
+    }
+
     @Override
     public void handle(InitConnection initConnection) {
         plugin.getServer().getScheduler().runTask(plugin, new Runnable() {
             @Override
             public void run() {
                 channel.write(new ServerSettings(
-                        plugin.getConfiguration().shouldHideOres()
+                        plugin.getConfiguration().shouldHideOres(),
+                        chunkStream != null
                 ));
                 Location spawn = plugin.getTargetWorld().getSpawnLocation();
                 channel.write(new SpawnPosition(
@@ -61,4 +82,13 @@ public class ClientHandler extends SimpleChannelInboundHandler<Packet<ClientPack
     public void handle(KeepAlive keepAlive) {
 
     }
+
+    @Override
+    public void handle(ViewPosition viewPosition) {
+        if (chunkStream == null) {
+            return;
+        }
+        // Packets are handled on the channel's event loop
+        chunkStream.setView(viewPosition.getX(), viewPosition.getZ(), viewPosition.getViewDistance());
+    }
 }
@@ -34,8 +34,39 @@ public abstract class EndPoint {
 
     public abstract void handle(ChannelHandlerContext context, URI uri, FullHttpRequest request) throws Exception;
 
+    /**
+     * Checks whether an If-None-Match header matches the entity tag.
+     * The header may list several tags or be *, and weak tags are
+     * compared by their value as the header only needs a weak match
+     *
+     * @param header
+     *         The If-None-Match header, may be null
+     * @param etag
+     *         The quoted tag of the current entity
+     * @return Whether the client's copy is still current
+     */
+    protected static boolean matchesTag(String header, String etag) {
+        if (header == null || etag == null) {
+            return false;
+        }
+        String value = stripWeak(etag);
+        for (String candidate : header.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.equals("*") || stripWeak(candidate).equals(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String stripWeak(String etag) {
+        return etag.startsWith("W/") ? etag.substring(2) : etag;
+    }
+
     protected static void sendHttpResponse(ChannelHandlerContext context, FullHttpRequest request, FullHttpResponse response) {
-        if (response.getStatus().code() != 200) {
+        // Not modified responses must not have a body
+        boolean success = response.getStatus().code() == 200 || response.getStatus().code() == 304;
+        if (!success) {
             response.content().writeBytes(response.getStatus().toString().getBytes(CharsetUtil.UTF_8));
         }
         setContentLength(response, response.content().readableBytes());
@@ -45,7 +76,7 @@ public abstract class EndPoint {
         }
 
         ChannelFuture future = context.writeAndFlush(response);
-        if (!isKeepAlive(request) || response.getStatus().code() != 200) {
+        if (!isKeepAlive(request) || !success) {
             future.addListener(ChannelFutureListener.CLOSE);
         }
     }
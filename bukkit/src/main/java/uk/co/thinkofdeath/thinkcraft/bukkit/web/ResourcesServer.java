@@ -17,41 +17,61 @@
 package uk.co.thinkofdeath.thinkcraft.bukkit.web;
 
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.DefaultFileRegion;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpResponse;
 import io.netty.handler.codec.http.FullHttpRequest;
-import io.netty.handler.codec.http.FullHttpResponse;
-import org.apache.commons.io.IOUtils;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.LastHttpContent;
 import uk.co.thinkofdeath.thinkcraft.bukkit.ThinkMapPlugin;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.net.URI;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static io.netty.handler.codec.http.HttpHeaders.Names.*;
+import static io.netty.handler.codec.http.HttpHeaders.isKeepAlive;
 import static io.netty.handler.codec.http.HttpResponseStatus.*;
 import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
 
+/**
+ * Serves the generated resources. Small files are kept in memory
+ * after their first request and larger ones are sent straight from
+ * the file with a {@link DefaultFileRegion} so they never pass
+ * through the heap. Both are reloaded when the file changes on disk.
+ */
 public class ResourcesServer extends EndPoint {
 
     public static final String HTTP_DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss zzz";
     private final static HashMap<String, String> mimeTypes = new HashMap<String, String>();
+    // Files larger than this aren't kept in memory
+    private static final long MAX_CACHED_SIZE = 512 * 1024;
 
     static {
         mimeTypes.put("html", "text/html");
         mimeTypes.put("js", "application/javascript");
         mimeTypes.put("css", "text/css");
+        mimeTypes.put("png", "image/png");
+        mimeTypes.put("json", "application/json");
     }
 
     private final ThinkMapPlugin plugin;
     private final SimpleDateFormat format = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
+    private final ConcurrentHashMap<File, CachedFile> cache = new ConcurrentHashMap<>();
 
     public ResourcesServer(ThinkMapPlugin plugin) {
         this.plugin = plugin;
@@ -60,13 +80,24 @@ public class ResourcesServer extends EndPoint {
     @Override
     public void handle(ChannelHandlerContext context, URI uri, FullHttpRequest request) throws Exception {
         File file = new File(plugin.getResourceDir(), uri.getPath().substring("/resources/".length()));
-        if (!file.exists()) {
+        if (!file.isFile()) {
             sendHttpResponse(context, request, new DefaultFullHttpResponse(HTTP_1_1, NOT_FOUND));
             return;
         }
+        long length = file.length();
+        long lastModified = file.lastModified();
+        String etag = "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(length) + "\"";
+
+        String match = request.headers().get(IF_NONE_MATCH);
+        if (matchesTag(match, etag)) {
+            DefaultFullHttpResponse response = new DefaultFullHttpResponse(HTTP_1_1, NOT_MODIFIED);
+            response.headers().set(ETAG, etag);
+            sendHttpResponse(context, request, response);
+            return;
+        }
 
         String modified = request.headers().get(IF_MODIFIED_SINCE);
-        if (modified != null && !modified.isEmpty()) {
+        if (match == null && modified != null && !modified.isEmpty()) {
             Date modifiedDate = format.parse(modified);
 
             if (modifiedDate.equals(plugin.getStartUpDate())) {
@@ -75,18 +106,45 @@ public class ResourcesServer extends EndPoint {
             }
         }
 
-        ByteBuf buffer;
-        try (InputStream stream = new FileInputStream(file)) {
-            ByteBufOutputStream out = new ByteBufOutputStream(context.alloc().buffer());
-            IOUtils.copy(stream, out);
-            buffer = out.buffer();
-            out.close();
+        if (length <= MAX_CACHED_SIZE) {
+            CachedFile cached = cache.get(file);
+            if (cached == null || cached.lastModified != lastModified || cached.length != length) {
+                cached = new CachedFile(lastModified, length, read(file, (int) length));
+                cache.put(file, cached);
+            }
+            DefaultFullHttpResponse response = new DefaultFullHttpResponse(HTTP_1_1, OK, cached.data.duplicate());
+            addHeaders(uri, response, etag);
+            sendHttpResponse(context, request, response);
+            return;
         }
 
-        FullHttpResponse response = new DefaultFullHttpResponse(HTTP_1_1, OK, buffer);
+        RandomAccessFile raf;
+        try {
+            raf = new RandomAccessFile(file, "r");
+        } catch (IOException e) {
+            sendHttpResponse(context, request, new DefaultFullHttpResponse(HTTP_1_1, NOT_FOUND));
+            return;
+        }
+        length = raf.length();
+        HttpResponse response = new DefaultHttpResponse(HTTP_1_1, OK);
+        addHeaders(uri, response, etag);
+        HttpHeaders.setContentLength(response, length);
+        if (isKeepAlive(request)) {
+            response.headers().set(CONNECTION, HttpHeaders.Values.KEEP_ALIVE);
+        }
+        context.write(response);
+        // The region closes the file once it has been sent
+        context.write(new DefaultFileRegion(raf.getChannel(), 0, length));
+        ChannelFuture future = context.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+        if (!isKeepAlive(request)) {
+            future.addListener(ChannelFutureListener.CLOSE);
+        }
+    }
 
+    private void addHeaders(URI uri, HttpResponse response, String etag) {
         response.headers().set(DATE, format.format(new Date()));
         response.headers().set(LAST_MODIFIED, format.format(plugin.getStartUpDate()));
+        response.headers().set(ETAG, etag);
 
         if (uri.getPath().startsWith("/resources/assets")) {
             Calendar calendar = Calendar.getInstance();
@@ -104,6 +162,34 @@ public class ResourcesServer extends EndPoint {
         }
         response.headers().set(CONTENT_TYPE, type);
         response.headers().add("Access-Control-Allow-Origin", "*");
-        sendHttpResponse(context, request, response);
+    }
+
+    // Reads the whole file into a buffer which is shared between
+    // responses and so can't be released by them
+    private static ByteBuf read(File file, int length) throws IOException {
+        byte[] data = new byte[length];
+        try (InputStream stream = new FileInputStream(file)) {
+            int read = 0;
+            while (read < length) {
+                int count = stream.read(data, read, length - read);
+                if (count == -1) {
+                    throw new IOException("File changed while being read");
+                }
+                read += count;
+            }
+        }
+        return Unpooled.unreleasableBuffer(Unpooled.directBuffer(length).writeBytes(data));
+    }
+
+    private static class CachedFile {
+        private final long lastModified;
+        private final long length;
+        private final ByteBuf data;
+
+        private CachedFile(long lastModified, long length, ByteBuf data) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.data = data;
+        }
     }
 }
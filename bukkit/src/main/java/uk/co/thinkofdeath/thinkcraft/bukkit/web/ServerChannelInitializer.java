@@ -44,6 +44,7 @@ public class ServerChannelInitializer extends ChannelInitializer<SocketChannel>
         pipeline.addLast("websocket", new WebSocketServerProtocolHandler("/server"));
         pipeline.addLast("packet-decoder", new PacketDecoder());
         pipeline.addLast("packet-encoder", new PacketEncoder());
+        pipeline.addLast("chunk-encoder", new ChunkDataEncoder());
         pipeline.addLast("packet-handler", new ClientHandler(socketChannel, plugin));
 
         socketChannel.config().setAllocator(PooledByteBufAllocator.DEFAULT);
@@ -44,6 +44,8 @@ public class WebHandler implements Runnable {
         endPointManager.add(Pattern.compile("/resources/.*"), new ResourcesServer(plugin));
 
         endPointManager.add("/server/chunk", new ChunkEndPoint(plugin));
+        endPointManager.add(ChunkGetEndPoint.PATH, new ChunkGetEndPoint(plugin));
+        endPointManager.add("/server/chunks", new ChunkBatchEndPoint(plugin));
         endPointManager.add("/server/ws", new ServerEndPoint());
     }
 
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2014 Matthew Collins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.thinkofdeath.thinkcraft.bukkit.world;
+
+import gnu.trove.map.TLongLongMap;
+import gnu.trove.map.hash.TLongLongHashMap;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The set of loaded chunks and a version for each of them. Versions
+ * come from a single counter so they only ever increase, even for a
+ * chunk which is unloaded and loaded again, which makes them usable
+ * as a key for the staleness of an encoded copy.
+ * <p>
+ * The map is striped by chunk so request threads checking a chunk
+ * only contend with changes to chunks in the same stripe.
+ */
+public class ActiveChunks {
+
+    private static final int STRIPES = 64;
+
+    private final TLongLongMap[] stripes = new TLongLongMap[STRIPES];
+    private final ReadWriteLock[] locks = new ReadWriteLock[STRIPES];
+    private final AtomicLong clock = new AtomicLong();
+
+    public ActiveChunks() {
+        for (int i = 0; i < STRIPES; i++) {
+            // No entry is 0 so that it can't be mistaken for a version
+            stripes[i] = new TLongLongHashMap();
+            locks[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    /**
+     * Marks the chunk as active with a new version
+     *
+     * @param key
+     *         The chunk's key
+     * @return The chunk's version
+     */
+    public long activate(long key) {
+        int stripe = stripe(key);
+        Lock lock = locks[stripe].writeLock();
+        lock.lock();
+        try {
+            long version = clock.incrementAndGet();
+            stripes[stripe].put(key, version);
+            return version;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Marks the chunk as inactive
+     *
+     * @param key
+     *         The chunk's key
+     */
+    public void deactivate(long key) {
+        int stripe = stripe(key);
+        Lock lock = locks[stripe].writeLock();
+        lock.lock();
+        try {
+            stripes[stripe].remove(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gives the chunk a new version if it is active, this should be
+     * called whenever the chunk changes
+     *
+     * @param key
+     *         The chunk's key
+     * @return The new version or 0 if the chunk isn't active
+     */
+    public long bump(long key) {
+        int stripe = stripe(key);
+        Lock lock = locks[stripe].writeLock();
+        lock.lock();
+        try {
+            if (!stripes[stripe].containsKey(key)) {
+                return 0;
+            }
+            long version = clock.incrementAndGet();
+            stripes[stripe].put(key, version);
+            return version;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the current version of the chunk
+     *
+     * @param key
+     *         The chunk's key
+     * @return The version or 0 if the chunk isn't active
+     */
+    public long getVersion(long key) {
+        int stripe = stripe(key);
+        Lock lock = locks[stripe].readLock();
+        lock.lock();
+        try {
+            return stripes[stripe].get(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns whether the chunk is active
+     *
+     * @param key
+     *         The chunk's key
+     * @return Whether the chunk is active
+     */
+    public boolean contains(long key) {
+        return getVersion(key) != 0;
+    }
+
+    /**
+     * Returns the number of active chunks
+     *
+     * @return The number of active chunks
+     */
+    public int size() {
+        int size = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            Lock lock = locks[i].readLock();
+            lock.lock();
+            try {
+                size += stripes[i].size();
+            } finally {
+                lock.unlock();
+            }
+        }
+        return size;
+    }
+
+    private static int stripe(long key) {
+        int hash = (int) (key ^ (key >>> 32));
+        hash ^= (hash >>> 16);
+        return hash & (STRIPES - 1);
+    }
+}
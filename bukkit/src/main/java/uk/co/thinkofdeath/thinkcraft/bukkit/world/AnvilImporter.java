@@ -0,0 +1,335 @@
+/*
+ * Copyright 2014 Matthew Collins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.thinkofdeath.thinkcraft.bukkit.world;
+
+import org.bukkit.World;
+import uk.co.thinkofdeath.thinkcraft.bukkit.world.anvil.AnvilChunk;
+import uk.co.thinkofdeath.thinkcraft.bukkit.world.anvil.AnvilRegion;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Imports a world straight from its Anvil region files without
+ * loading any chunks on the server. Regions are imported in parallel
+ * on a fork join pool.
+ * <p>
+ * In incremental mode only chunks saved since the last import are
+ * imported again. The time of an import is only recorded if nothing
+ * failed, so failed chunks are retried by the next import.
+ * <p>
+ * Batches are written while the save queue is held off their region
+ * so a newer copy queued during the import is never overwritten.
+ */
+public class AnvilImporter {
+
+    private static final String TIMESTAMP_FILE = "last-import";
+    // Chunks are written a row of a region at a time to limit the
+    // memory used by each worker
+    private static final int BATCH_SIZE = 32;
+
+    private final ChunkManager chunkManager;
+    private final File regionFolder;
+    private final boolean incremental;
+
+    private final AtomicInteger regionCount = new AtomicInteger();
+    private final AtomicInteger completedRegions = new AtomicInteger();
+    private final AtomicLong imported = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicInteger failedRegions = new AtomicInteger();
+
+    /**
+     * Creates an importer for the chunk manager's world
+     *
+     * @param chunkManager
+     *         The chunk manager to import into
+     * @param incremental
+     *         Whether to only import chunks changed since the last
+     *         import
+     */
+    public AnvilImporter(ChunkManager chunkManager, boolean incremental) {
+        this.chunkManager = chunkManager;
+        this.regionFolder = findRegionFolder(chunkManager.getWorld());
+        this.incremental = incremental;
+    }
+
+    /**
+     * Returns the folder containing the world's Anvil region files
+     *
+     * @param world
+     *         The world to find the folder of
+     * @return The folder or null if it doesn't exist
+     */
+    public static File findRegionFolder(World world) {
+        File folder = new File(world.getWorldFolder(), "region");
+        if (!folder.exists()) {
+            // handle nether/end
+            folder = new File(world.getWorldFolder(), String.format("DIM%d/region", world.getEnvironment().getId()));
+            if (!folder.exists()) {
+                return null;
+            }
+        }
+        return folder;
+    }
+
+    /**
+     * Imports the world. This blocks until every region has been
+     * imported and must not be called on the main thread
+     *
+     * @throws IOException
+     *         If the world's region files couldn't be found
+     */
+    public void run() throws IOException {
+        if (regionFolder == null) {
+            throw new IOException("Couldn't find the region folder for " + chunkManager.getWorld().getName());
+        }
+        // Anvil only stores whole seconds, a chunk saved later in the
+        // same second as the import started must still count as newer
+        long start = System.currentTimeMillis() / 1000 * 1000;
+        final long since = incremental ? readTimestamp() : 0;
+
+        File[] files = regionFolder.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".mca");
+            }
+        });
+        if (files == null) {
+            throw new IOException("Couldn't list " + regionFolder);
+        }
+        regionCount.set(files.length);
+
+        final List<RegionTask> tasks = new ArrayList<>();
+        for (File file : files) {
+            if (file.lastModified() < since) {
+                // Nothing in the region changed
+                completedRegions.incrementAndGet();
+                continue;
+            }
+            tasks.add(new RegionTask(file, since));
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        try {
+            pool.invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    invokeAll(tasks);
+                }
+            });
+        } finally {
+            pool.shutdown();
+        }
+        if (failed.get() == 0 && failedRegions.get() == 0) {
+            writeTimestamp(start);
+        } else {
+            chunkManager.getPlugin().getLogger().warning(
+                    "Not recording the import time, failed chunks will be retried by the next import");
+        }
+    }
+
+    private void importRegion(File file, long since) {
+        String[] parts = file.getName().split("\\.");
+        int rx;
+        int rz;
+        try {
+            rx = Integer.parseInt(parts[1]);
+            rz = Integer.parseInt(parts[2]);
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            return;
+        }
+        try (AnvilRegion region = new AnvilRegion(file)) {
+            List<AnvilChunk> batch = new ArrayList<>();
+            for (int z = 0; z < 32; z++) {
+                for (int x = 0; x < 32; x++) {
+                    int cx = (rx << 5) + x;
+                    int cz = (rz << 5) + z;
+                    if (!region.hasChunk(cx, cz)) {
+                        continue;
+                    }
+                    // Live and unsaved chunks are newer than the copy on
+                    // disk and will be saved when they unload
+                    if (region.getTimestamp(cx, cz) < since || chunkManager.hasNewerCopy(cx, cz)) {
+                        skipped.incrementAndGet();
+                        continue;
+                    }
+                    try {
+                        Map<String, Object> nbt = region.readChunk(cx, cz);
+                        AnvilChunk chunk = new AnvilChunk(nbt);
+                        if (chunk.getX() != cx || chunk.getZ() != cz) {
+                            throw new IOException("Chunk is stored in the wrong location");
+                        }
+                        batch.add(chunk);
+                    } catch (IOException e) {
+                        failed.incrementAndGet();
+                        chunkManager.getPlugin().getLogger().warning(
+                                String.format("Failed to import chunk %d,%d: %s", cx, cz, e.getMessage()));
+                    }
+                }
+                if (batch.size() >= BATCH_SIZE || (z == 31 && !batch.isEmpty())) {
+                    try {
+                        imported.addAndGet(writeBatch(rx, rz, batch));
+                    } catch (IOException e) {
+                        failed.addAndGet(batch.size());
+                        chunkManager.getPlugin().getLogger().log(Level.SEVERE,
+                                "Failed to write chunks imported from " + file.getName(), e);
+                    }
+                    batch.clear();
+                }
+            }
+        } catch (IOException e) {
+            failedRegions.incrementAndGet();
+            chunkManager.getPlugin().getLogger().log(Level.SEVERE, "Failed to import " + file.getName(), e);
+        } finally {
+            completedRegions.incrementAndGet();
+        }
+    }
+
+    // Writes the batch unless a newer copy of a chunk turned up since
+    // it was read, returns the number of chunks written
+    private int writeBatch(final int rx, final int rz, final List<AnvilChunk> batch) throws IOException {
+        return chunkManager.getSaveQueue().runExclusive(rx, rz, new ChunkSaveQueue.RegionTask<Integer>() {
+            @Override
+            public Integer run() throws IOException {
+                Iterator<AnvilChunk> it = batch.iterator();
+                while (it.hasNext()) {
+                    AnvilChunk chunk = it.next();
+                    if (chunkManager.hasNewerCopy(chunk.getX(), chunk.getZ())) {
+                        skipped.incrementAndGet();
+                        it.remove();
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    chunkManager.writeRegion(rx, rz, batch);
+                }
+                return batch.size();
+            }
+        });
+    }
+
+    private File getTimestampFile() {
+        return new File(chunkManager.getStorageFolder(), TIMESTAMP_FILE);
+    }
+
+    private long readTimestamp() {
+        File file = getTimestampFile();
+        if (!file.exists()) {
+            return 0;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            return in.readLong();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private void writeTimestamp(long time) throws IOException {
+        File file = getTimestampFile();
+        if (!file.getParentFile().exists() && !file.getParentFile().mkdirs()) {
+            throw new IOException("Failed to create " + file.getParentFile());
+        }
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+            out.writeLong(time);
+        }
+    }
+
+    /**
+     * Returns the number of region files in the world
+     *
+     * @return The number of regions
+     */
+    public int getRegionCount() {
+        return regionCount.get();
+    }
+
+    /**
+     * Returns the number of regions that have been imported
+     *
+     * @return The number of completed regions
+     */
+    public int getCompletedRegions() {
+        return completedRegions.get();
+    }
+
+    /**
+     * Returns the number of chunks imported
+     *
+     * @return The number of imported chunks
+     */
+    public long getImportedCount() {
+        return imported.get();
+    }
+
+    /**
+     * Returns the number of chunks skipped because they were
+     * unchanged or had a newer copy
+     *
+     * @return The number of skipped chunks
+     */
+    public long getSkippedCount() {
+        return skipped.get();
+    }
+
+    /**
+     * Returns the number of chunks which couldn't be read or written
+     *
+     * @return The number of failed chunks
+     */
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * Returns the number of region files which couldn't be read
+     *
+     * @return The number of failed regions
+     */
+    public int getFailedRegionCount() {
+        return failedRegions.get();
+    }
+
+    private class RegionTask extends RecursiveAction {
+
+        private final File file;
+        private final long since;
+
+        private RegionTask(File file, long since) {
+            this.file = file;
+            this.since = since;
+        }
+
+        @Override
+        protected void compute() {
+            importRegion(file, since);
+        }
+    }
+}
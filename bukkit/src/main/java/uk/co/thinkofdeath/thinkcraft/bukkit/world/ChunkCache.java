@@ -0,0 +1,193 @@
+/*
+ * Copyright 2014 Matthew Collins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.thinkofdeath.thinkcraft.bukkit.world;
+
+import io.netty.buffer.ByteBuf;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A memory bounded least recently used cache of encoded chunks.
+ * <p>
+ * Each entry is tagged with the version the chunk had when its
+ * snapshot was requested (see {@link ActiveChunks}) and is only
+ * returned to requests for that same version, so a copy that was
+ * changed while it was being encoded is never served.
+ */
+public class ChunkCache {
+
+    private final long maxBytes;
+    private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Creates a cache which holds at most maxBytes of encoded chunks
+     *
+     * @param maxBytes
+     *         The maximum size of the cache in bytes
+     */
+    public ChunkCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the cached data for the chunk. The returned buffer has
+     * its own indexes and must be released by the caller
+     *
+     * @param key
+     *         The chunk's key
+     * @param version
+     *         The current version of the chunk
+     * @return The cached data or null if it isn't cached
+     */
+    public ByteBuf get(long key, long version) {
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                if (entry.version == version) {
+                    hits.incrementAndGet();
+                    return entry.data.duplicate().retain();
+                }
+                if (entry.version < version) {
+                    // Can never be used again
+                    remove(key);
+                }
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Stores the encoded data for the version of the chunk, unless a
+     * newer version is already cached. The cache takes its own
+     * reference to the data
+     *
+     * @param key
+     *         The chunk's key
+     * @param version
+     *         The version of the chunk when its snapshot was requested
+     * @param data
+     *         The encoded chunk
+     */
+    public void put(long key, long version, ByteBuf data) {
+        if (maxBytes <= 0) {
+            return;
+        }
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                if (entry.version >= version) {
+                    return;
+                }
+                remove(key);
+            }
+            entries.put(key, new Entry(version, data.retain()));
+            size += data.capacity();
+            trim();
+        }
+    }
+
+    /**
+     * Removes the chunk from the cache
+     *
+     * @param key
+     *         The chunk's key
+     */
+    public void invalidate(long key) {
+        synchronized (entries) {
+            remove(key);
+        }
+    }
+
+    /**
+     * Removes everything from the cache
+     */
+    public void clear() {
+        synchronized (entries) {
+            for (Entry entry : entries.values()) {
+                entry.data.release();
+            }
+            entries.clear();
+            size = 0;
+        }
+    }
+
+    private void remove(long key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            size -= entry.data.capacity();
+            entry.data.release();
+        }
+    }
+
+    // Evicts the least recently used entries until the cache
+    // fits within its limit
+    private void trim() {
+        Iterator<Entry> it = entries.values().iterator();
+        while (size > maxBytes && it.hasNext()) {
+            Entry entry = it.next();
+            size -= entry.data.capacity();
+            entry.data.release();
+            it.remove();
+        }
+    }
+
+    /**
+     * Returns the number of bytes currently held by the cache
+     *
+     * @return The size in bytes
+     */
+    public long getSize() {
+        synchronized (entries) {
+            return size;
+        }
+    }
+
+    /**
+     * Returns the number of requests served from the cache
+     *
+     * @return The hit count
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of requests that missed the cache
+     *
+     * @return The miss count
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private static class Entry {
+        private final long version;
+        private final ByteBuf data;
+
+        private Entry(long version, ByteBuf data) {
+            this.version = version;
+            this.data = data;
+        }
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright 2014 Matthew Collins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.thinkofdeath.thinkcraft.bukkit.world;
+
+import io.netty.buffer.ByteBuf;
+
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Gzip compresses encoded chunks. Each thread reuses a single
+ * {@link Deflater} instead of allocating a new native one for every
+ * chunk, and data is deflated straight between the buffers' backing
+ * arrays where possible.
+ * <p>
+ * Every stream is flushed to a byte boundary before an empty final
+ * block and the trailer, so the compressed data of several streams
+ * can be joined into one by dropping their headers and the last
+ * {@link #TAIL_SIZE} bytes.
+ */
+public class ChunkCompressor {
+
+    private static final byte[] GZIP_HEADER = {
+            0x1F, (byte) 0x8B, // Magic
+            Deflater.DEFLATED,
+            0, // Flags
+            0, 0, 0, 0, // Modification time
+            0, // Extra flags
+            0 // OS
+    };
+    private static final int SCRATCH_SIZE = 8192;
+
+    /**
+     * The size of the gzip header
+     */
+    public static final int HEADER_SIZE = GZIP_HEADER.length;
+    /**
+     * The size of the empty final block and the gzip trailer
+     */
+    public static final int TAIL_SIZE = 2 + 8;
+
+    private final int level;
+    private final ThreadLocal<State> states = new ThreadLocal<State>() {
+        @Override
+        protected State initialValue() {
+            return new State(level);
+        }
+    };
+
+    /**
+     * Creates a compressor using the passed deflate level
+     *
+     * @param level
+     *         The compression level between 0 (none) and 9 (best)
+     */
+    public ChunkCompressor(int level) {
+        this.level = Math.max(Deflater.NO_COMPRESSION, Math.min(Deflater.BEST_COMPRESSION, level));
+    }
+
+    /**
+     * Compresses the readable bytes of in as a gzip stream and
+     * writes it to out. The reader index of in is not changed
+     *
+     * @param in
+     *         The data to compress
+     * @param out
+     *         The buffer to write the gzip stream to
+     */
+    public void compress(ByteBuf in, ByteBuf out) {
+        CRC32 crc = states.get().crc;
+        crc.reset();
+        int length = in.readableBytes();
+        if (in.hasArray()) {
+            crc.update(in.array(), in.arrayOffset() + in.readerIndex(), length);
+        } else {
+            byte[] input = new byte[length];
+            in.getBytes(in.readerIndex(), input);
+            crc.update(input, 0, length);
+        }
+        writeHeader(out);
+        compressPiece(in, in.readerIndex(), length, out);
+        finish(out, (int) crc.getValue(), length);
+    }
+
+    /**
+     * Writes the gzip header that starts a stream built out of
+     * pieces
+     *
+     * @param out
+     *         The buffer to write to
+     * @see #compressPiece(ByteBuf, int, int, ByteBuf)
+     */
+    public static void writeHeader(ByteBuf out) {
+        out.writeBytes(GZIP_HEADER);
+    }
+
+    /**
+     * Deflates a piece of a stream on its own and flushes it to a
+     * byte boundary without ending the stream, so that separately
+     * compressed pieces can be joined together
+     *
+     * @param in
+     *         The buffer holding the piece
+     * @param index
+     *         The index the piece starts at
+     * @param length
+     *         The length of the piece
+     * @param out
+     *         The buffer to write the compressed piece to
+     */
+    public void compressPiece(ByteBuf in, int index, int length, ByteBuf out) {
+        State state = states.get();
+        Deflater deflater = state.deflater;
+        deflater.reset();
+
+        byte[] input;
+        int inputOffset;
+        if (in.hasArray()) {
+            input = in.array();
+            inputOffset = in.arrayOffset() + index;
+        } else {
+            // Off-heap buffers have to be staged as the deflater
+            // only accepts arrays
+            input = new byte[length];
+            inputOffset = 0;
+            in.getBytes(index, input);
+        }
+        deflater.setInput(input, inputOffset, length);
+
+        while (true) {
+            // The flush is complete once the deflater stops filling
+            // the space it is given
+            if (out.hasArray()) {
+                out.ensureWritable(Math.max(SCRATCH_SIZE, length >> 2));
+                int space = out.writableBytes();
+                int count = deflater.deflate(out.array(), out.arrayOffset() + out.writerIndex(), space, Deflater.SYNC_FLUSH);
+                out.writerIndex(out.writerIndex() + count);
+                if (count < space) {
+                    break;
+                }
+            } else {
+                int count = deflater.deflate(state.scratch, 0, SCRATCH_SIZE, Deflater.SYNC_FLUSH);
+                out.writeBytes(state.scratch, 0, count);
+                if (count < SCRATCH_SIZE) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Ends a stream built out of pieces with an empty final block
+     * and the gzip trailer
+     *
+     * @param out
+     *         The buffer to write to
+     * @param crc
+     *         The crc32 of the whole uncompressed stream
+     * @param length
+     *         The length of the whole uncompressed stream
+     */
+    public static void finish(ByteBuf out, int crc, int length) {
+        // Final block using the fixed codes holding just the end of
+        // block code
+        out.writeByte(0x03);
+        out.writeByte(0x00);
+        // Trailer, both little endian
+        writeIntLE(out, crc);
+        writeIntLE(out, length);
+    }
+
+    /**
+     * Returns the crc32 of two pieces of data joined together
+     *
+     * @param crc1
+     *         The crc32 of the first piece
+     * @param crc2
+     *         The crc32 of the second piece
+     * @param length2
+     *         The length of the second piece
+     * @return The crc32 of the joined data
+     */
+    public static int combineCrc(int crc1, int crc2, long length2) {
+        // Same method as zlib's crc32_combine, crc1 is advanced past
+        // length2 zero bytes by repeatedly squaring the operator for
+        // a single zero bit
+        if (length2 <= 0) {
+            return crc1;
+        }
+        long[] even = new long[32];
+        long[] odd = new long[32];
+        odd[0] = 0xEDB88320L;
+        long row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        gf2MatrixSquare(even, odd);
+        gf2MatrixSquare(odd, even);
+
+        long crc = crc1 & 0xFFFFFFFFL;
+        do {
+            gf2MatrixSquare(even, odd);
+            if ((length2 & 1) != 0) {
+                crc = gf2MatrixTimes(even, crc);
+            }
+            length2 >>= 1;
+            if (length2 == 0) {
+                break;
+            }
+            gf2MatrixSquare(odd, even);
+            if ((length2 & 1) != 0) {
+                crc = gf2MatrixTimes(odd, crc);
+            }
+            length2 >>= 1;
+        } while (length2 != 0);
+        return (int) (crc ^ (crc2 & 0xFFFFFFFFL));
+    }
+
+    private static long gf2MatrixTimes(long[] matrix, long vector) {
+        long sum = 0;
+        for (int i = 0; vector != 0; i++, vector >>>= 1) {
+            if ((vector & 1) != 0) {
+                sum ^= matrix[i];
+            }
+        }
+        return sum;
+    }
+
+    private static void gf2MatrixSquare(long[] square, long[] matrix) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = gf2MatrixTimes(matrix, matrix[n]);
+        }
+    }
+
+    /**
+     * Returns the compression level used by this compressor
+     *
+     * @return The compression level
+     */
+    public int getLevel() {
+        return level;
+    }
+
+    private static void writeIntLE(ByteBuf out, int value) {
+        out.writeByte(value);
+        out.writeByte(value >>> 8);
+        out.writeByte(value >>> 16);
+        out.writeByte(value >>> 24);
+    }
+
+    private static class State {
+        private final Deflater deflater;
+        private final CRC32 crc = new CRC32();
+        private final byte[] scratch = new byte[SCRATCH_SIZE];
+
+        private State(int level) {
+            // Raw deflate, the gzip framing is written by hand
+            deflater = new Deflater(level, true);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2014 Matthew Collins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.thinkofdeath.thinkcraft.bukkit.world;
+
+/**
+ * The chunk state needed to encode a chunk. This lets chunks be
+ * encoded from live snapshots as well as directly from the world's
+ * region files
+ */
+public interface ChunkData {
+
+    /**
+     * Returns the x position of the chunk
+     *
+     * @return The x position
+     */
+    int getX();
+
+    /**
+     * Returns the z position of the chunk
+     *
+     * @return The z position
+     */
+    int getZ();
+
+    /**
+     * Returns whether the 16 block high section contains only air
+     *
+     * @param section
+     *         The section index (0 - 15)
+     * @return Whether the section is empty
+     */
+    boolean isSectionEmpty(int section);
+
+    /**
+     * Returns the type id of the block at the position
+     *
+     * @param x
+     *         The x position within the chunk
+     * @param y
+     *         The y position
+     * @param z
+     *         The z position within the chunk
+     * @return The block's type id
+     */
+    int getBlockTypeId(int x, int y, int z);
+
+    /**
+     * Returns the data value of the block at the position
+     *
+     * @param x
+     *         The x position within the chunk
+     * @param y
+     *         The y position
+     * @param z
+     *         The z position within the chunk
+     * @return The block's data value
+     */
+    int getBlockData(int x, int y, int z);
+
+    /**
+     * Returns the light emitted by blocks at the position
+     *
+     * @param x
+     *         The x position within the chunk
+     * @param y
+     *         The y position
+     * @param z
+     *         The z position within the chunk
+     * @return The block light level
+     */
+    int getBlockEmittedLight(int x, int y, int z);
+
+    /**
+     * Returns the sky light at the position
+     *
+     * @param x
+     *         The x position within the chunk
+     * @param y
+     *         The y position
+     * @param z
+     *         The z position within the chunk
+     * @return The sky light level
+     */
+    int getBlockSkyLight(int x, int y, int z);
+
+    /**
+     * Returns the map viewer's id for the biome of the column
+     *
+     * @param x
+     *         The x position within the chunk
+     * @param z
+     *         The z position within the chunk
+     * @return The biome id
+     */
+    int getBiomeId(int x, int z);
+}
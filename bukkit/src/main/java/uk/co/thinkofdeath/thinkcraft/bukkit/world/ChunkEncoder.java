@@ -0,0 +1,222 @@
+/*
+ * Copyright 2014 Matthew Collins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.thinkofdeath.thinkcraft.bukkit.world;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * Encodes chunks into the (uncompressed) format sent to the
+ * map viewer and stored in region files.
+ * <p>
+ * Each non-empty section is stored as a palette of the block states
+ * (id &lt;&lt; 4 | data) it uses followed by bit-packed indices into
+ * that palette, so most sections only need a few bits per block.
+ * <pre>
+ * u8       1 (the chunk exists)
+ * u16      section mask
+ * for each section in the mask:
+ *   u16    palette size
+ *   u16[]  palette entries
+ *   u8     bits per block (0, 1, 2, 4, 8 or 16)
+ *   ...    4096 indices packed low bits first
+ *   u8     light flags
+ *   u8[]   2048 bytes of block light, unless flag 0x1 is set
+ *   u8[]   2048 bytes of sky light, unless flag 0x2 is set
+ * u8[]     256 biome ids
+ * </pre>
+ * Light values are packed two per byte, low nibble first. Flag 0x1
+ * marks a section without any block light and flag 0x2 marks a
+ * section which is fully lit by the sky, in both cases the array is
+ * left out.
+ * The header, each section and the biomes can be reported as
+ * separate pieces so they can be stored individually, see
+ * {@link ChunkRecord}.
+ * Instances keep scratch space between calls and aren't thread safe.
+ */
+public class ChunkEncoder {
+
+    private static final int SECTION_SIZE = 16 * 16 * 16;
+
+    /**
+     * Set when a section has no block light
+     */
+    public static final int FLAG_NO_BLOCK_LIGHT = 0x1;
+    /**
+     * Set when a section's sky light is 15 everywhere
+     */
+    public static final int FLAG_FULL_SKY_LIGHT = 0x2;
+
+    // Palette index + 1 for each block state, 0 when the state
+    // isn't in the current palette
+    private final int[] paletteLookup = new int[1 << 16];
+    private final int[] palette = new int[SECTION_SIZE];
+    private final int[] indices = new int[SECTION_SIZE];
+    private final int[] blockLight = new int[SECTION_SIZE];
+    private final int[] skyLight = new int[SECTION_SIZE];
+
+    /**
+     * Encodes the chunk and writes it to out
+     *
+     * @param chunk
+     *         The chunk to encode
+     * @param out
+     *         The buffer to write to
+     */
+    public void encode(ChunkData chunk, ByteBuf out) {
+        encode(chunk, out, null, null);
+    }
+
+    /**
+     * Encodes the chunk and writes it to out, recording where each
+     * piece of the chunk ends
+     *
+     * @param chunk
+     *         The chunk to encode
+     * @param out
+     *         The buffer to write to
+     * @param pieceIds
+     *         The array to store the id of each piece in, at least
+     *         {@link ChunkRecord#MAX_PIECES} long. May be null
+     * @param pieceEnds
+     *         The array to store the writer index at the end of each
+     *         piece in. May be null
+     * @return The number of pieces
+     */
+    public int encode(ChunkData chunk, ByteBuf out, int[] pieceIds, int[] pieceEnds) {
+        int mask = 0;
+        for (int i = 0; i < 16; i++) {
+            if (!chunk.isSectionEmpty(i)) {
+                mask |= 1 << i;
+            }
+        }
+        out.writeByte(1); // The chunk exists
+        out.writeShort(mask);
+        int pieces = markPiece(pieceIds, pieceEnds, 0, ChunkRecord.HEADER_PIECE, out);
+        for (int i = 0; i < 16; i++) {
+            if ((mask & (1 << i)) != 0) {
+                writeSection(chunk, i, out);
+                pieces = markPiece(pieceIds, pieceEnds, pieces, i, out);
+            }
+        }
+        for (int z = 0; z < 16; z++) {
+            for (int x = 0; x < 16; x++) {
+                out.writeByte(chunk.getBiomeId(x, z));
+            }
+        }
+        return markPiece(pieceIds, pieceEnds, pieces, ChunkRecord.BIOME_PIECE, out);
+    }
+
+    private static int markPiece(int[] pieceIds, int[] pieceEnds, int count, int id, ByteBuf out) {
+        if (pieceIds != null) {
+            pieceIds[count] = id;
+            pieceEnds[count] = out.writerIndex();
+        }
+        return count + 1;
+    }
+
+    private void writeSection(ChunkData chunk, int section, ByteBuf out) {
+        int paletteSize = 0;
+        int idx = 0;
+        try {
+            for (int oy = 0; oy < 16; oy++) {
+                int y = oy + (section << 4);
+                for (int oz = 0; oz < 16; oz++) {
+                    for (int ox = 0; ox < 16; ox++) {
+                        int state = (chunk.getBlockTypeId(ox, y, oz) << 4) | chunk.getBlockData(ox, y, oz);
+                        int index = paletteLookup[state];
+                        if (index == 0) {
+                            palette[paletteSize++] = state;
+                            index = paletteLookup[state] = paletteSize;
+                        }
+                        indices[idx++] = index - 1;
+                    }
+                }
+            }
+        } finally {
+            // Reset the lookup for the next section, even if this one
+            // failed part way through
+            for (int i = 0; i < paletteSize; i++) {
+                paletteLookup[palette[i]] = 0;
+            }
+        }
+
+        out.writeShort(paletteSize);
+        for (int i = 0; i < paletteSize; i++) {
+            out.writeShort(palette[i]);
+        }
+
+        int bits = bitsFor(paletteSize);
+        out.writeByte(bits);
+        if (bits == 16) {
+            for (int i = 0; i < SECTION_SIZE; i++) {
+                out.writeShort(indices[i]);
+            }
+        } else if (bits != 0) {
+            int perByte = 8 / bits;
+            for (int i = 0; i < SECTION_SIZE; i += perByte) {
+                int b = 0;
+                for (int j = 0; j < perByte; j++) {
+                    b |= indices[i + j] << (j * bits);
+                }
+                out.writeByte(b);
+            }
+        }
+
+        int flags = FLAG_NO_BLOCK_LIGHT | FLAG_FULL_SKY_LIGHT;
+        idx = 0;
+        for (int oy = 0; oy < 16; oy++) {
+            int y = oy + (section << 4);
+            for (int oz = 0; oz < 16; oz++) {
+                for (int ox = 0; ox < 16; ox++) {
+                    int light = blockLight[idx] = chunk.getBlockEmittedLight(ox, y, oz);
+                    int sky = skyLight[idx] = chunk.getBlockSkyLight(ox, y, oz);
+                    if (light != 0) {
+                        flags &= ~FLAG_NO_BLOCK_LIGHT;
+                    }
+                    if (sky != 15) {
+                        flags &= ~FLAG_FULL_SKY_LIGHT;
+                    }
+                    idx++;
+                }
+            }
+        }
+        out.writeByte(flags);
+        if ((flags & FLAG_NO_BLOCK_LIGHT) == 0) {
+            writeNibbles(blockLight, out);
+        }
+        if ((flags & FLAG_FULL_SKY_LIGHT) == 0) {
+            writeNibbles(skyLight, out);
+        }
+    }
+
+    private static void writeNibbles(int[] values, ByteBuf out) {
+        for (int i = 0; i < SECTION_SIZE; i += 2) {
+            out.writeByte((values[i] & 0xF) | ((values[i + 1] & 0xF) << 4));
+        }
+    }
+
+    // Returns the smallest number of bits that divides a byte
+    // evenly and can index the whole palette
+    private static int bitsFor(int paletteSize) {
+        if (paletteSize <= 1) return 0;
+        if (paletteSize <= 2) return 1;
+        if (paletteSize <= 4) return 2;
+        if (paletteSize <= 16) return 4;
+        if (paletteSize <= 256) return 8;
+        return 16;
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2014 Matthew Collins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.thinkofdeath.thinkcraft.bukkit.world;
+
+import gnu.trove.map.TLongObjectMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
+
+import java.util.BitSet;
+
+/**
+ * An in-memory record of which chunks have been stored and the
+ * content hash of each stored copy, grouped by region. This allows
+ * requests for chunks which don't exist to be answered without
+ * touching the disk. It is filled
+ * by {@link ChunkStorage#load(ChunkIndex)} at start up
+ */
+public class ChunkIndex {
+
+    // Guarded by regions
+    private final TLongObjectMap<Region> regions = new TLongObjectHashMap<>();
+    private int chunkCount;
+
+    /**
+     * Returns whether the chunk has been stored
+     *
+     * @param x
+     *         The x position of the chunk
+     * @param z
+     *         The z position of the chunk
+     * @return Whether the chunk exists
+     */
+    public boolean contains(int x, int z) {
+        synchronized (regions) {
+            Region region = regions.get(regionKey(x >> 5, z >> 5));
+            return region != null && region.mask.get(RegionFile.chunkId(x, z));
+        }
+    }
+
+    /**
+     * Returns the content hash of the stored copy of the chunk
+     *
+     * @param x
+     *         The x position of the chunk
+     * @param z
+     *         The z position of the chunk
+     * @return The hash or 0 if it isn't known
+     */
+    public int getHash(int x, int z) {
+        synchronized (regions) {
+            Region region = regions.get(regionKey(x >> 5, z >> 5));
+            return region != null ? region.hashes[RegionFile.chunkId(x, z)] : 0;
+        }
+    }
+
+    /**
+     * Records that the chunk has been stored
+     *
+     * @param x
+     *         The x position of the chunk
+     * @param z
+     *         The z position of the chunk
+     * @param hash
+     *         The content hash of the stored copy, 0 if unknown
+     */
+    public void add(int x, int z, int hash) {
+        long key = regionKey(x >> 5, z >> 5);
+        int id = RegionFile.chunkId(x, z);
+        synchronized (regions) {
+            Region region = regions.get(key);
+            if (region == null) {
+                region = new Region();
+                regions.put(key, region);
+            }
+            if (!region.mask.get(id)) {
+                region.mask.set(id);
+                chunkCount++;
+            }
+            region.hashes[id] = hash;
+        }
+    }
+
+    /**
+     * Returns the positions of every stored chunk
+     *
+     * @return The positions as x, z pairs
+     */
+    public int[] getPositions() {
+        synchronized (regions) {
+            int[] positions = new int[chunkCount * 2];
+            int i = 0;
+            for (long key : regions.keys()) {
+                int rx = (int) (key >> 32);
+                int rz = (int) key;
+                BitSet mask = regions.get(key).mask;
+                for (int id = mask.nextSetBit(0); id >= 0; id = mask.nextSetBit(id + 1)) {
+                    positions[i++] = (rx << 5) | (id & 0x1F);
+                    positions[i++] = (rz << 5) | (id >> 5);
+                }
+            }
+            return positions;
+        }
+    }
+
+    /**
+     * Returns the number of stored chunks
+     *
+     * @return The number of chunks
+     */
+    public int getChunkCount() {
+        synchronized (regions) {
+            return chunkCount;
+        }
+    }
+
+    private static long regionKey(int rx, int rz) {
+        return ((long) rx << 32) | (rz & 0xFFFFFFFFL);
+    }
+
+    private static class Region {
+        private final BitSet mask = new BitSet(RegionFile.CHUNK_COUNT);
+        private final int[] hashes = new int[RegionFile.CHUNK_COUNT];
+    }
+}
@@ -16,42 +16,85 @@
 
 package uk.co.thinkofdeath.thinkcraft.bukkit.world;
 
-import gnu.trove.set.TLongSet;
-import gnu.trove.set.hash.TLongHashSet;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufAllocator;
-import io.netty.buffer.ByteBufOutputStream;
 import io.netty.buffer.PooledByteBufAllocator;
-import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.DefaultPromise;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.FutureListener;
 import org.bukkit.Chunk;
-import org.bukkit.ChunkSnapshot;
 import org.bukkit.World;
 import uk.co.thinkofdeath.thinkcraft.bukkit.ThinkMapPlugin;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-import java.util.zip.GZIPOutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.zip.CRC32;
 
 public class ChunkManager {
 
+    // Limits the memory used by decoded chunks while migrating
+    private static final int MIGRATE_BATCH_SIZE = 32;
+
     private final ThinkMapPlugin plugin;
     private final World world;
-    private final TLongSet activeChunks = new TLongHashSet();
-    private final ReadWriteLock worldLock = new ReentrantReadWriteLock();
+    private final ActiveChunks activeChunks = new ActiveChunks();
+    // Versions restart from zero with every manager so tags based on
+    // them also carry the time the manager was created
+    private final long epoch = System.currentTimeMillis();
     private final ByteBufAllocator allocator = PooledByteBufAllocator.DEFAULT;
+    private final ThreadLocal<ChunkEncoder> encoders = new ThreadLocal<ChunkEncoder>() {
+        @Override
+        protected ChunkEncoder initialValue() {
+            return new ChunkEncoder();
+        }
+    };
+    private final ChunkCompressor compressor;
+    private final ChunkStorage storage;
+    private final ChunkSaveQueue saveQueue;
+    private final ChunkCache cache;
+    private final SnapshotScheduler snapshots;
+    private final ChunkIndex index = new ChunkIndex();
+    private final ChunkSummaries summaries;
+    private final ChunkPrefetcher prefetcher;
+    // Null unless stored copies of live chunks are kept fresh
+    private final ChunkRefresher refresher;
+    private final AtomicLong savesWritten = new AtomicLong();
+    private final AtomicLong savesSkipped = new AtomicLong();
+    private final AtomicLong piecesCompressed = new AtomicLong();
+    private final AtomicLong piecesReused = new AtomicLong();
+    // Requests currently being worked on and the promises waiting
+    // for them
+    private final HashMap<Long, List<ChunkPromise>> inFlight = new HashMap<>();
+    private final AtomicLong coalesced = new AtomicLong();
 
     public ChunkManager(ThinkMapPlugin plugin, World world) {
         this.plugin = plugin;
         this.world = world;
+        compressor = new ChunkCompressor(plugin.getConfiguration().getCompressionLevel());
+        storage = openStorage(plugin.getConfiguration().getStorageEngine());
+        summaries = new ChunkSummaries(getStorageFolder());
+        try {
+            storage.load(index);
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.SEVERE, "Failed to index the stored chunks of " + world.getName(), e);
+        }
+        saveQueue = new ChunkSaveQueue(this, world.getName(), plugin.getConfiguration().getSaveThreads());
+        cache = new ChunkCache(plugin.getConfiguration().getChunkCacheSize() * 1024L * 1024L);
+        snapshots = new SnapshotScheduler(this, plugin.getConfiguration().getSnapshotBudget());
+        prefetcher = new ChunkPrefetcher(this, plugin.getConfiguration().getPrefetchRadius(),
+                plugin.getConfiguration().getPrefetchCacheSize() * 1024L * 1024L);
+        double maxStaleness = plugin.getConfiguration().getRefreshMaxStaleness();
+        refresher = maxStaleness > 0
+                ? new ChunkRefresher(this, maxStaleness, plugin.getConfiguration().getSnapshotBudget())
+                : null;
     }
 
     /**
@@ -62,9 +105,7 @@ public class ChunkManager {
      *         The chunk to mark as active
      */
     public void activateChunk(Chunk chunk) {
-        synchronized (activeChunks) {
-            activeChunks.add(chunkKey(chunk.getX(), chunk.getZ()));
-        }
+        activeChunks.activate(chunkKey(chunk.getX(), chunk.getZ()));
     }
 
     /**
@@ -76,239 +117,765 @@ public class ChunkManager {
      */
     public void deactivateChunk(Chunk chunk) {
         // Stop the map viewer from requesting live versions
-        synchronized (activeChunks) {
-            activeChunks.remove(chunkKey(chunk.getX(), chunk.getZ()));
+        activeChunks.deactivate(chunkKey(chunk.getX(), chunk.getZ()));
+        if (refresher != null) {
+            refresher.untrack(chunk.getX(), chunk.getZ());
         }
+        // Inactive chunks are served from the region file
+        cache.invalidate(chunkKey(chunk.getX(), chunk.getZ()));
         // Grab a final copy to save to the region file
-        final ChunkSnapshot snapshot = chunk.getChunkSnapshot(false, true, false);
-        plugin.getServer().getScheduler().runTaskAsynchronously(plugin, new Runnable() {
+        saveQueue.queue(new SnapshotChunkData(chunk.getChunkSnapshot(false, true, false)));
+    }
 
-            @Override
-            public void run() {
-                try {
-                    // Lock the world for writing
-                    Lock lock = worldLock.writeLock();
-                    lock.lock();
-
-                    File worldFolder = new File(plugin.getWorldDir(), world.getName());
-                    if (!worldFolder.exists() && !worldFolder.mkdirs()) {
-                        throw new RuntimeException("Failed to create world folder");
-                    }
+    /**
+     * Gives the chunk a new version and removes any cached copy of
+     * it, this should be called whenever the chunk is changed
+     *
+     * @param x
+     *         The x position of the chunk
+     * @param z
+     *         The z position of the chunk
+     */
+    public void invalidateChunk(int x, int z) {
+        long key = chunkKey(x, z);
+        activeChunks.bump(key);
+        cache.invalidate(key);
+        // Requests made after the change shouldn't join one which
+        // may have already taken its snapshot
+        synchronized (inFlight) {
+            inFlight.remove(key);
+        }
+    }
 
-                    ByteBuf data = allocator.buffer();
+    /**
+     * Returns the version of the live chunk, this changes every time
+     * the chunk is loaded or changed
+     *
+     * @param x
+     *         The x position of the chunk
+     * @param z
+     *         The z position of the chunk
+     * @return The version or 0 if the chunk isn't active
+     */
+    public long getChunkVersion(int x, int z) {
+        return activeChunks.getVersion(chunkKey(x, z));
+    }
 
-                    try (RandomAccessFile region = new RandomAccessFile(new File(worldFolder,
-                            String.format("region_%d-%d.dat", snapshot.getX() >> 5, snapshot.getZ() >> 5)
-                    ), "rw")) {
-                        // Save and compress the chunk
-                        gzipChunk(snapshot, data);
+    /**
+     * Returns a tag which changes whenever the data returned for the
+     * chunk may have changed, without reading or encoding it. Live
+     * chunks are tagged with their version and stored chunks with the
+     * hash of their stored copy
+     *
+     * @param x
+     *         The x position of the chunk
+     * @param z
+     *         The z position of the chunk
+     * @return The tag or null if the chunk can't be tagged, e.g. it
+     * isn't stored or is waiting to be saved
+     */
+    public String getChunkTag(int x, int z) {
+        long version = activeChunks.getVersion(chunkKey(x, z));
+        if (version != 0) {
+            return liveTag(version);
+        }
+        if (saveQueue.getPending(x, z) != null) {
+            return null;
+        }
+        return storedTag(index.getHash(x, z));
+    }
 
-                        if (region.length() < 4096 * 3) {
-                            // Init header with enough space for size + location
-                            // with a little bit extra for expansion
-                            region.seek(4096 * 3);
-                            region.writeByte(0);
-                        }
-                        int id = ((snapshot.getX() & 0x1F) | ((snapshot.getZ() & 0x1F) << 5));
-                        region.seek(8 * id);
-                        int offset = region.readInt();
-                        int size = region.readInt();
-                        if (offset != 0) {
-                            // Try and reuse the old space
-                            if (data.readableBytes() < ((size / 4096) + 1) * 4096) {
-                                size = data.readableBytes();
-                                region.seek(8 * id);
-                                region.writeInt(offset);
-                                region.writeInt(size);
-                                region.seek(offset * 4096);
-                                byte[] bytes = new byte[data.readableBytes()];
-                                data.readBytes(bytes);
-                                region.write(bytes);
-                                return;
-                            }
-                        }
+    /**
+     * Returns the tag of the data a future returned by
+     * {@link #getChunkBytes(int, int, EventExecutor)} completed with.
+     * This is the tag of the copy that was actually used, which may
+     * differ from {@link #getChunkTag(int, int)} if the live chunk
+     * couldn't be read in time and the stored copy was used instead
+     *
+     * @param future
+     *         The completed future
+     * @return The tag or null if the data can't be tagged
+     */
+    public static String getDataTag(Future<ByteBuf> future) {
+        return future instanceof ChunkPromise ? ((ChunkPromise) future).tag : null;
+    }
 
-                        // Search for a new location
-
-                        // Fill in the used spaces first
-                        boolean[] usedSpace = new boolean[(int) ((region.length() / 4096) + 1)];
-                        usedSpace[0] = usedSpace[1] = usedSpace[2] = true;
-                        for (int i = 0; i < 32 * 32; i++) {
-                            if (i == id) continue;
-                            region.seek(8 * i);
-                            int oo = region.readInt();
-                            int os = region.readInt();
-                            for (int j = oo; j < oo + ((os / 4096) + 1); j++) {
-                                usedSpace[j] = true;
-                            }
-                        }
-                        offset = usedSpace.length;
-                        size = data.readableBytes();
-                        // Search though every location until a location with a large enough
-                        // space is found
-                        search:
-                        for (int i = 2; i < usedSpace.length; i++) {
-                            if (!usedSpace[i]) {
-                                for (int j = i + 1; j < i + ((size / 4096) + 1); j++) {
-                                    if (j >= usedSpace.length || usedSpace[j]) {
-                                        i += ((size / 4096) + 1);
-                                        continue search;
-                                    }
-                                }
-                                offset = i;
-                                break;
-                            }
-                        }
-                        region.seek(offset * 4096);
-                        byte[] bytes = new byte[data.readableBytes()];
-                        data.readBytes(bytes);
-                        region.write(bytes);
-                        region.seek(8 * id);
-                        region.writeInt(offset);
-                        region.writeInt(size);
+    private String liveTag(long version) {
+        return "l" + Long.toHexString(epoch) + "-" + Long.toHexString(version);
+    }
+
+    private static String storedTag(int hash) {
+        return hash != 0 ? "s" + Integer.toHexString(hash) : null;
+    }
+
+    // Returns whether there is a copy of the chunk newer than the
+    // one saved by the world, either live or waiting to be saved
+    boolean hasNewerCopy(int x, int z) {
+        return activeChunks.contains(chunkKey(x, z)) || saveQueue.getPending(x, z) != null;
+    }
+
+    /**
+     * Opens the named storage engine in this world's storage folder,
+     * unknown engines fall back to region files
+     *
+     * @param engine
+     *         The engine's name, either region or log
+     * @return The storage
+     */
+    public ChunkStorage openStorage(String engine) {
+        if (engine.equalsIgnoreCase("log")) {
+            return new LogChunkStorage(new File(getStorageFolder(), "log"),
+                    plugin.getConfiguration().getLogSegmentSize() * 1024L * 1024L, plugin.getLogger());
+        }
+        if (!engine.equalsIgnoreCase("region")) {
+            plugin.getLogger().warning("Unknown storage engine " + engine + ", using region");
+        }
+        return new RegionChunkStorage(getStorageFolder(), plugin.getConfiguration().getMaxOpenRegions());
+    }
+
+    // Compresses the chunks and writes them to the storage, the
+    // chunks are all from one region so region files only need
+    // their header updating once for the whole batch. Chunks which
+    // haven't changed since they were last stored are skipped and
+    // only the sections which changed are compressed again
+    void writeRegion(int rx, int rz, List<? extends ChunkData> chunks) throws IOException {
+        ByteBuf[] data = new ByteBuf[chunks.size()];
+        int[] hashes = new int[chunks.size()];
+        byte[][] summaryData = new byte[chunks.size()][];
+        int[] pieceIds = new int[ChunkRecord.MAX_PIECES];
+        int[] pieceEnds = new int[ChunkRecord.MAX_PIECES];
+        try {
+            ByteBuf raw = allocator.heapBuffer();
+            try {
+                for (int i = 0; i < data.length; i++) {
+                    ChunkData chunk = chunks.get(i);
+                    raw.clear();
+                    int pieces = encoders.get().encode(chunk, raw, pieceIds, pieceEnds);
+                    hashes[i] = hashChunk(raw);
+                    int oldHash = index.getHash(chunk.getX(), chunk.getZ());
+                    if (hashes[i] == oldHash) {
+                        continue;
+                    }
+                    ByteBuf old = oldHash != 0 ? readRecord(chunk.getX(), chunk.getZ()) : null;
+                    data[i] = allocator.heapBuffer();
+                    try {
+                        int reused = ChunkRecord.build(compressor, raw, pieceIds, pieceEnds, pieces, old, data[i]);
+                        piecesReused.addAndGet(reused);
+                        piecesCompressed.addAndGet(pieces - reused);
                     } finally {
-                        lock.unlock();
-                        ReferenceCountUtil.release(data);
+                        if (old != null) {
+                            old.release();
+                        }
                     }
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
+                    summaryData[i] = new byte[ChunkSummaries.SUMMARY_SIZE];
+                    ChunkSummaries.summarise(chunk, summaryData[i]);
                 }
+            } finally {
+                raw.release();
             }
-        });
+            int written = 0;
+            for (int i = 0; i < data.length; i++) {
+                if (data[i] != null) {
+                    ChunkData chunk = chunks.get(i);
+                    storage.write(chunk.getX(), chunk.getZ(), data[i], hashes[i]);
+                    written++;
+                }
+            }
+            if (written > 0) {
+                storage.flush();
+                summaries.write(rx, rz, chunks, summaryData);
+            }
+            for (int i = 0; i < data.length; i++) {
+                if (data[i] != null) {
+                    ChunkData chunk = chunks.get(i);
+                    index.add(chunk.getX(), chunk.getZ(), hashes[i]);
+                }
+            }
+            savesWritten.addAndGet(written);
+            savesSkipped.addAndGet(data.length - written);
+        } finally {
+            for (ByteBuf buf : data) {
+                if (buf != null) {
+                    buf.release();
+                }
+            }
+        }
     }
 
-    // Reads the chunk data for the location
-    private byte[] getChunkData(final int x, final int z) {
-        File worldFolder = new File(plugin.getWorldDir(), world.getName());
-        Lock lock = worldLock.readLock();
-        lock.lock();
-        try (RandomAccessFile region = new RandomAccessFile(new File(worldFolder,
-                String.format("region_%d-%d.dat", x >> 5, z >> 5)
-        ), "r")) {
-            if (region.length() < 4096 * 3) return null;
-            int id = ((x & 0x1F) | ((z & 0x1F) << 5));
-            // Read the header
-            region.seek(8 * id);
-            int offset = region.readInt();
-            int size = region.readInt();
-            if (offset == 0) { // No entry
-                return null;
-            }
-            region.seek(offset * 4096);
-            byte[] data = new byte[size];
-            region.readFully(data);
-            return data;
-        } catch (FileNotFoundException e) {
-            return null;
+    // Reads the stored chunk data for the location
+    private ByteBuf getChunkData(final int x, final int z) {
+        ByteBuf record = readRecord(x, z);
+        if (record != null) {
+            ChunkRecord.skipTable(record);
+        }
+        return record;
+    }
+
+    // Reads the stored record for the location
+    ByteBuf readRecord(int x, int z) {
+        try {
+            return storage.read(x, z);
         } catch (IOException e) {
             return null;
-        } finally {
-            lock.unlock();
         }
     }
 
-    // Gets the gzip'd chunk data for the location and stores it
-    // in out, returns false if the chunk wasn't loaded for any reason
-    public boolean getChunkBytes(final int x, final int z, ByteBuf out) {
-        ChunkSnapshot chunk = null;
-        boolean shouldGrabChunk;
-        // Check if the chunk is already loaded
-        synchronized (activeChunks) {
-            shouldGrabChunk = activeChunks.contains(chunkKey(x, z));
+    /**
+     * Returns the top-down summary of the stored chunk, see
+     * {@link ChunkSummaries} for the format
+     *
+     * @param x
+     *         The x position of the chunk
+     * @param z
+     *         The z position of the chunk
+     * @return The summary or null if the chunk hasn't been stored
+     * @throws IOException
+     *         If the summary couldn't be read
+     */
+    public byte[] getSummary(int x, int z) throws IOException {
+        if (!index.contains(x, z)) {
+            return null;
         }
-        if (shouldGrabChunk) {
-            try {
-                chunk = plugin.getServer().getScheduler().callSyncMethod(plugin, new Callable<ChunkSnapshot>() {
-                    @Override
-                    public ChunkSnapshot call() throws Exception {
-                        synchronized (activeChunks) {
-                            // Double check to prevent a race where a chunk could unload
-                            // between the first check and grabbing the chunk
-                            if (activeChunks.contains(chunkKey(x, z))) {
-                                return world.getChunkAt(x, z).getChunkSnapshot(false, true, false);
-                            } else {
-                                return null;
-                            }
+        return summaries.read(x, z);
+    }
+
+    /**
+     * Copies the chunks stored by another storage engine into this
+     * manager's storage. Chunks which have already been stored by
+     * this manager, or which are waiting to be saved, are newer and
+     * are left alone. Each region is copied while the save queue is
+     * held off it and the summaries of the copied chunks are written
+     * as well
+     *
+     * @param engine
+     *         The name of the engine to copy from
+     * @return The number of chunks copied
+     * @throws IOException
+     *         If the chunks couldn't be copied
+     */
+    public int migrate(String engine) throws IOException {
+        ChunkStorage source = openStorage(engine);
+        if (source.getClass() == storage.getClass()) {
+            source.close();
+            throw new IOException("Already using the " + engine + " storage engine");
+        }
+        int count = 0;
+        try {
+            ChunkIndex sourceIndex = new ChunkIndex();
+            source.load(sourceIndex);
+            // Positions are grouped by region
+            int[] positions = sourceIndex.getPositions();
+            int start = 0;
+            while (start < positions.length) {
+                int rx = positions[start] >> 5;
+                int rz = positions[start + 1] >> 5;
+                int end = start + 2;
+                while (end < positions.length && positions[end] >> 5 == rx && positions[end + 1] >> 5 == rz) {
+                    end += 2;
+                }
+                count += migrateRegion(source, sourceIndex, rx, rz, positions, start, end);
+                start = end;
+            }
+        } finally {
+            source.close();
+        }
+        return count;
+    }
+
+    private int migrateRegion(final ChunkStorage source, final ChunkIndex sourceIndex, final int rx, final int rz,
+                              final int[] positions, final int start, final int end) throws IOException {
+        return saveQueue.runExclusive(rx, rz, new ChunkSaveQueue.RegionTask<Integer>() {
+            @Override
+            public Integer run() throws IOException {
+                int count = 0;
+                List<ChunkData> batch = new ArrayList<>();
+                int[] hashes = new int[MIGRATE_BATCH_SIZE];
+                for (int i = start; i < end; i += 2) {
+                    int x = positions[i];
+                    int z = positions[i + 1];
+                    if (index.contains(x, z) || hasNewerCopy(x, z)) {
+                        continue;
+                    }
+                    ByteBuf data = source.read(x, z);
+                    if (data == null) {
+                        continue;
+                    }
+                    int hash = sourceIndex.getHash(x, z);
+                    try {
+                        ChunkData chunk;
+                        try {
+                            // Decoded for the summary
+                            chunk = new StoredChunkData(x, z, data);
+                        } catch (IOException e) {
+                            plugin.getLogger().warning(
+                                    String.format("Failed to migrate chunk %d,%d: %s", x, z, e.getMessage()));
+                            continue;
                         }
+                        storage.write(x, z, data, hash);
+                        hashes[batch.size()] = hash;
+                        batch.add(chunk);
+                    } finally {
+                        data.release();
+                    }
+                    if (batch.size() == MIGRATE_BATCH_SIZE) {
+                        count += finishMigrateBatch(rx, rz, batch, hashes);
                     }
-                }).get(2, TimeUnit.SECONDS); // Time-out is encase the plugin is disabled
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-            } catch (ExecutionException e) {
-                throw new RuntimeException(e);
-            } catch (TimeoutException e) {
-                plugin.getLogger().warning("Failed to load chunk on time. Time out");
+                }
+                if (!batch.isEmpty()) {
+                    count += finishMigrateBatch(rx, rz, batch, hashes);
+                }
+                return count;
             }
+        });
+    }
+
+    // Makes the copied chunks visible once their records are flushed
+    private int finishMigrateBatch(int rx, int rz, List<ChunkData> batch, int[] hashes) throws IOException {
+        storage.flush();
+        byte[][] summaryData = new byte[batch.size()][];
+        for (int i = 0; i < summaryData.length; i++) {
+            summaryData[i] = new byte[ChunkSummaries.SUMMARY_SIZE];
+            ChunkSummaries.summarise(batch.get(i), summaryData[i]);
         }
-        if (chunk == null) { // Inactive chunk
-            byte[] data = getChunkData(x, z);
-            if (data == null) {
-                return false;
+        summaries.write(rx, rz, batch, summaryData);
+        for (int i = 0; i < summaryData.length; i++) {
+            ChunkData chunk = batch.get(i);
+            index.add(chunk.getX(), chunk.getZ(), hashes[i]);
+        }
+        int count = batch.size();
+        batch.clear();
+        return count;
+    }
+
+    /**
+     * Gets the gzip'd chunk data for the location. The returned
+     * future completes on the passed executor with the data, or
+     * null if the chunk wasn't loaded for any reason. This never
+     * blocks the calling thread
+     *
+     * @param x
+     *         The x position of the chunk
+     * @param z
+     *         The z position of the chunk
+     * @param executor
+     *         The executor to complete the future on
+     * @return A future for the chunk data
+     */
+    public Future<ByteBuf> getChunkBytes(final int x, final int z, final EventExecutor executor) {
+        ChunkPromise waiter = new ChunkPromise(executor);
+        final long key = chunkKey(x, z);
+        // Check if the chunk is already loaded
+        final long version = activeChunks.getVersion(key);
+        boolean shouldGrabChunk = version != 0;
+        if (shouldGrabChunk) {
+            ByteBuf cached = cache.get(key, version);
+            if (cached != null) {
+                waiter.complete(cached, liveTag(version));
+                return waiter;
+            }
+            if (refresher != null && refresher.requestFresh(x, z)) {
+                // The stored copy is recent enough, skip the snapshot
+                shouldGrabChunk = false;
             }
-            out.writeBytes(data);
-            return true;
+        } else if (!index.contains(x, z) && saveQueue.getPending(x, z) == null) {
+            // Never stored and not loaded, answer straight away
+            // instead of queuing a read for nothing
+            waiter.complete(null, null);
+            return waiter;
         }
-        // Active chunk
-        gzipChunk(chunk, out);
-        return true;
+
+        // Join a request for the same chunk that is already being
+        // worked on instead of repeating the snapshot and compression
+        final List<ChunkPromise> waiters;
+        synchronized (inFlight) {
+            List<ChunkPromise> existing = inFlight.get(key);
+            if (existing != null) {
+                existing.add(waiter);
+                coalesced.incrementAndGet();
+                // Keeps the most requested chunks first in line for
+                // a snapshot
+                snapshots.addWaiter(x, z);
+                return waiter;
+            }
+            waiters = new ArrayList<>();
+            waiters.add(waiter);
+            inFlight.put(key, waiters);
+        }
+        final ChunkPromise promise = new ChunkPromise(executor);
+        promise.addListener(new FutureListener<ByteBuf>() {
+            @Override
+            public void operationComplete(Future<ByteBuf> future) throws Exception {
+                shareChunk(key, waiters, future);
+            }
+        });
+
+        if (!shouldGrabChunk) {
+            submitChunk(x, z, null, 0, promise);
+            return waiter;
+        }
+        // The version was read before the snapshot is taken so any
+        // change made after this point stops the result being used
+        // from the cache
+        boolean accepted = snapshots.request(x, z, new SnapshotScheduler.Callback() {
+            @Override
+            public void snapshotReady(ChunkData chunk) {
+                // Encode off the main thread
+                submitChunk(x, z, chunk, version, promise);
+            }
+
+            @Override
+            public boolean isWanted() {
+                // Not once the time out has used the stored copy
+                return !promise.isDone() && !promise.fallback;
+            }
+        });
+        if (!accepted) {
+            // The plugin is being disabled, use the stored copy
+            submitChunk(x, z, null, 0, promise);
+            return waiter;
+        }
+        // Time-out is encase the server is lagging or the plugin is
+        // disabled before the task runs
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (!promise.isDone()) {
+                    plugin.getLogger().warning("Failed to load chunk on time. Time out");
+                    promise.fallback = true;
+                    submitChunk(x, z, null, 0, promise);
+                }
+            }
+        }, 2, TimeUnit.SECONDS);
+        return waiter;
     }
 
-    // Gzips a ChunkSnapshot and stores it in out
-    private void gzipChunk(ChunkSnapshot chunk, ByteBuf out) {
-        int mask = 0;
-        int count = 0;
-        for (int i = 0; i < 16; i++) {
-            if (!chunk.isSectionEmpty(i)) {
-                mask |= 1 << i;
-                count++;
+    // Hands the result of an in-flight request to everyone waiting
+    // on it, each waiter gets its own reference to the data
+    private void shareChunk(long key, List<ChunkPromise> waiters, Future<ByteBuf> future) {
+        List<ChunkPromise> done;
+        synchronized (inFlight) {
+            // The request may have already been detached by an
+            // invalidation, in which case a newer one may be in
+            // its place
+            if (inFlight.get(key) == waiters) {
+                inFlight.remove(key);
             }
+            done = new ArrayList<>(waiters);
         }
-        ByteBuf data = allocator.buffer(16 * 16 * 16 * 4 * count + 3 + 256);
-        data.writeByte(1); // The chunk exists
-        data.writeShort(mask);
-        int offset = 0;
-        int blockDataOffset = 16 * 16 * 16 * 2 * count;
-        int skyDataOffset = blockDataOffset + 16 * 16 * 16 * count;
-        for (int i = 0; i < 16; i++) {
-            if (!chunk.isSectionEmpty(i)) {
-                for (int oy = 0; oy < 16; oy++) {
-                    for (int oz = 0; oz < 16; oz++) {
-                        for (int ox = 0; ox < 16; ox++) {
-                            int y = oy + (i << 4);
-                            int id = chunk.getBlockTypeId(ox, y, oz);
-                            int dValue = chunk.getBlockData(ox, y, oz);
-                            data.setShort((offset << 1) + 3, (id << 4) | dValue);
-
-                            data.setByte(blockDataOffset + offset + 3, chunk.getBlockEmittedLight(ox, y, oz));
-                            data.setByte(skyDataOffset + offset + 3, chunk.getBlockSkyLight(ox, y, oz));
-
-                            offset++;
-                        }
-                    }
+        if (!future.isSuccess()) {
+            for (ChunkPromise waiter : done) {
+                waiter.tryFailure(future.cause());
+            }
+            return;
+        }
+        ByteBuf out = future.getNow();
+        String tag = getDataTag(future);
+        try {
+            for (ChunkPromise waiter : done) {
+                ByteBuf data = out != null ? out.duplicate().retain() : null;
+                if (!waiter.complete(data, tag) && data != null) {
+                    data.release();
                 }
             }
+        } finally {
+            if (out != null) {
+                out.release();
+            }
+        }
+    }
+
+    // Takes a snapshot of the chunk if it is still active, must be
+    // called on the main thread
+    ChunkData takeSnapshot(int x, int z) {
+        // Double check to prevent a race where a chunk could unload
+        // between the request and grabbing the chunk
+        if (activeChunks.contains(chunkKey(x, z))) {
+            return new SnapshotChunkData(world.getChunkAt(x, z).getChunkSnapshot(false, true, false));
         }
-        for (int x = 0; x < 16; x++) {
-            for (int z = 0; z < 16; z++) {
-                data.setByte(skyDataOffset + offset + 3 + x + z * 16, ThinkBiome.bukkitToId(chunk.getBiome(x, z)));
+        return null;
+    }
+
+    // Completes the promise on the encoding pool, failing it straight
+    // away if the pool is too busy to take it
+    private void submitChunk(final int x, final int z, final ChunkData chunk, final long version,
+                             final ChunkPromise promise) {
+        try {
+            plugin.getEncodingExecutor().execute(new EncodingExecutor.Task() {
+                @Override
+                public void run() {
+                    completeChunk(x, z, chunk, version, promise);
+                }
+
+                @Override
+                public void dropped() {
+                    promise.tryFailure(new RejectedExecutionException("The encoding pool was shut down"));
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            promise.tryFailure(e);
+        }
+    }
+
+    // Completes the promise with the gzip'd chunk, falling back to
+    // the stored copy if the snapshot is null. The result is cached
+    // under the version unless it is 0
+    private void completeChunk(int x, int z, ChunkData chunk, long version, ChunkPromise promise) {
+        if (promise.isDone()) {
+            return;
+        }
+        ByteBuf out;
+        String[] tag = new String[1];
+        try {
+            out = getChunkBytes(x, z, chunk, version, tag);
+        } catch (RuntimeException e) {
+            promise.tryFailure(e);
+            return;
+        }
+        if (!promise.complete(out, tag[0]) && out != null) {
+            out.release();
+        }
+    }
+
+    // Stores the tag of the returned data in tag[0], see getChunkTag
+    private ByteBuf getChunkBytes(int x, int z, ChunkData chunk, long version, String[] tag) {
+        if (chunk == null) {
+            // Use the unloaded copy if it is still waiting to be saved
+            chunk = saveQueue.getPending(x, z);
+            version = 0;
+        }
+        if (chunk == null) { // Inactive chunk
+            if (!index.contains(x, z)) {
+                // Never stored, no need to check the region file
+                return null;
             }
+            int hash = index.getHash(x, z);
+            ByteBuf out = prefetcher.get(x, z, hash);
+            if (out == null) {
+                out = getChunkData(x, z);
+            }
+            if (out != null) {
+                prefetcher.prefetchAround(x, z);
+                // Only tagged if no save replaced the copy while it
+                // was being read
+                if (index.getHash(x, z) == hash && saveQueue.getPending(x, z) == null) {
+                    tag[0] = storedTag(hash);
+                }
+            }
+            return out;
+        }
+        ByteBuf out = allocator.heapBuffer();
+        gzipChunk(chunk, out);
+        if (version != 0) {
+            tag[0] = liveTag(version);
+            cache.put(chunkKey(x, z), version, out);
+            // The cache shares the buffer so give the caller its own indexes
+            return out.duplicate();
         }
-        data.writerIndex(data.capacity());
+        return out;
+    }
+
+    // Gzips a chunk and stores it in out
+    void gzipChunk(ChunkData chunk, ByteBuf out) {
+        // Heap buffers let the compressor work on the backing
+        // arrays without copying
+        ByteBuf data = allocator.heapBuffer();
         try {
-            GZIPOutputStream gzip = new GZIPOutputStream(new ByteBufOutputStream(out));
-            byte[] bytes = new byte[data.readableBytes()];
-            data.readBytes(bytes);
-            gzip.write(bytes);
-            gzip.close();
-        } catch (IOException e) {
-            throw new RuntimeException();
+            encoders.get().encode(chunk, data);
+            compressor.compress(data, out);
         } finally {
             data.release();
         }
     }
 
-    // Used for the activeChunks set
-    private static long chunkKey(int x, int z) {
-        return ((long) x << 32) | z & 0xFFFFFFFL;
+    // Hashes the encoded chunk, 0 is kept to mean an unknown hash
+    private static int hashChunk(ByteBuf raw) {
+        CRC32 crc = new CRC32();
+        crc.update(raw.array(), raw.arrayOffset() + raw.readerIndex(), raw.readableBytes());
+        int hash = (int) crc.getValue();
+        return hash != 0 ? hash : 1;
+    }
+
+    /**
+     * Closes any region files held open by this manager
+     */
+    public void close() {
+        snapshots.close();
+        if (refresher != null) {
+            refresher.close();
+        }
+        prefetcher.close();
+        saveQueue.close();
+        storage.close();
+        cache.clear();
+    }
+
+    /**
+     * Returns the number of chunks written to the storage since
+     * start up
+     *
+     * @return The number of chunks written
+     */
+    public long getSavesWritten() {
+        return savesWritten.get();
+    }
+
+    /**
+     * Returns the number of chunk saves skipped because the stored
+     * copy was already up to date
+     *
+     * @return The number of skipped saves
+     */
+    public long getSavesSkipped() {
+        return savesSkipped.get();
+    }
+
+    /**
+     * Returns the number of chunk pieces (sections, headers and
+     * biomes) compressed while saving
+     *
+     * @return The number of compressed pieces
+     */
+    public long getPiecesCompressed() {
+        return piecesCompressed.get();
+    }
+
+    /**
+     * Returns the number of unchanged chunk pieces copied from the
+     * stored copy instead of being compressed again
+     *
+     * @return The number of reused pieces
+     */
+    public long getPiecesReused() {
+        return piecesReused.get();
+    }
+
+    /**
+     * Returns the number of requests that were served by joining an
+     * identical request already in flight
+     *
+     * @return The number of coalesced requests
+     */
+    public long getCoalescedRequests() {
+        return coalesced.get();
+    }
+
+    /**
+     * Returns the write-behind queue used to save unloaded chunks
+     *
+     * @return The save queue
+     */
+    public ChunkSaveQueue getSaveQueue() {
+        return saveQueue;
+    }
+
+    /**
+     * Returns the cache of encoded active chunks
+     *
+     * @return The chunk cache
+     */
+    public ChunkCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Returns the storage the chunks are saved to
+     *
+     * @return The chunk storage
+     */
+    public ChunkStorage getStorage() {
+        return storage;
+    }
+
+    /**
+     * Returns the index of stored chunks
+     *
+     * @return The chunk index
+     */
+    public ChunkIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Returns the prefetcher used to read stored chunks ahead of
+     * time
+     *
+     * @return The chunk prefetcher
+     */
+    public ChunkPrefetcher getPrefetcher() {
+        return prefetcher;
+    }
+
+    /**
+     * Returns the refresher keeping the stored copies of live chunks
+     * fresh
+     *
+     * @return The chunk refresher or null if it is disabled
+     */
+    public ChunkRefresher getRefresher() {
+        return refresher;
+    }
+
+    /**
+     * Returns the scheduler used to take snapshots of active chunks
+     *
+     * @return The snapshot scheduler
+     */
+    public SnapshotScheduler getSnapshotScheduler() {
+        return snapshots;
+    }
+
+    /**
+     * Returns the folder this manager stores the world's chunks in
+     *
+     * @return The storage folder
+     */
+    public File getStorageFolder() {
+        return new File(plugin.getWorldDir(), world.getName());
+    }
+
+    /**
+     * Returns the world this manager handles
+     *
+     * @return The world
+     */
+    public World getWorld() {
+        return world;
+    }
+
+    /**
+     * Returns the plugin that owns this manager
+     *
+     * @return The plugin
+     */
+    public ThinkMapPlugin getPlugin() {
+        return plugin;
+    }
+
+    // Packs a chunk position into a single key, used for the active
+    // chunks, cache and the other per chunk maps
+    static long chunkKey(int x, int z) {
+        return ((long) x << 32) | (z & 0xFFFFFFFFL);
+    }
+
+    // A promise for chunk data which also carries the tag of the
+    // copy it was completed with
+    private static class ChunkPromise extends DefaultPromise<ByteBuf> {
+        private volatile String tag;
+        // Set once the stored copy is used in place of the snapshot
+        private volatile boolean fallback;
+
+        private ChunkPromise(EventExecutor executor) {
+            super(executor);
+        }
+
+        // Sets the tag and completes the promise unless it has already
+        // been completed, keeping the first result's tag
+        private synchronized boolean complete(ByteBuf data, String tag) {
+            if (isDone()) {
+                return false;
+            }
+            this.tag = tag;
+            return trySuccess(data);
+        }
     }
 }
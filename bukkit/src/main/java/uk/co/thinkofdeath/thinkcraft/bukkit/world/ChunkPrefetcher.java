@@ -0,0 +1,305 @@
+/*
+ * Copyright 2014 Matthew Collins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.thinkofdeath.thinkcraft.bukkit.world;
+
+import gnu.trove.set.TLongSet;
+import gnu.trove.set.hash.TLongHashSet;
+import io.netty.buffer.ByteBuf;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads the stored neighbours of chunks served from disk ahead of
+ * time. The map viewer loads chunks in rings around the camera so a
+ * request for one chunk is normally followed by requests for the
+ * chunks around it.
+ * <p>
+ * Prefetched chunks are held in a small least recently used cache,
+ * tagged with the content hash of the stored copy they were read
+ * from so a chunk saved after it was prefetched is never served.
+ * Reads are done by a single thread with a bounded queue, requests
+ * that don't fit are dropped.
+ */
+public class ChunkPrefetcher {
+
+    private static final int QUEUE_SIZE = 256;
+
+    private final ChunkManager chunkManager;
+    private final int radius;
+    private final long maxBytes;
+    private final ThreadPoolExecutor worker;
+
+    // Guarded by entries
+    private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final TLongSet queued = new TLongHashSet();
+    private long size;
+
+    private final AtomicLong prefetched = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong wasted = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * Creates a prefetcher for the chunk manager's storage
+     *
+     * @param chunkManager
+     *         The chunk manager to read chunks through
+     * @param radius
+     *         The number of chunks around a served chunk to read,
+     *         0 disables prefetching
+     * @param maxBytes
+     *         The maximum size of the prefetched chunks in bytes
+     */
+    public ChunkPrefetcher(ChunkManager chunkManager, int radius, long maxBytes) {
+        this.chunkManager = chunkManager;
+        this.radius = Math.max(0, radius);
+        this.maxBytes = maxBytes;
+        final String name = chunkManager.getWorld().getName();
+        worker = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(QUEUE_SIZE),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "ThinkMap Chunk Prefetcher (" + name + ")");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Returns the prefetched copy of the chunk if it was read from
+     * the currently stored version. The returned buffer has its own
+     * indexes and must be released by the caller
+     *
+     * @param x
+     *         The x position of the chunk
+     * @param z
+     *         The z position of the chunk
+     * @param hash
+     *         The content hash of the stored chunk
+     * @return The gzip'd chunk or null if it hasn't been prefetched
+     */
+    public ByteBuf get(int x, int z, int hash) {
+        if (hash == 0) {
+            return null;
+        }
+        long key = ChunkManager.chunkKey(x, z);
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.hash != hash) {
+                // Saved since it was prefetched
+                remove(key);
+                return null;
+            }
+            if (!entry.used) {
+                entry.used = true;
+                hits.incrementAndGet();
+            }
+            return entry.data.duplicate().retain();
+        }
+    }
+
+    /**
+     * Queues the stored chunks around the chunk, within the same
+     * region, to be read
+     *
+     * @param x
+     *         The x position of the chunk
+     * @param z
+     *         The z position of the chunk
+     */
+    public void prefetchAround(int x, int z) {
+        if (radius == 0 || maxBytes <= 0) {
+            return;
+        }
+        ChunkIndex index = chunkManager.getIndex();
+        for (int ox = -radius; ox <= radius; ox++) {
+            for (int oz = -radius; oz <= radius; oz++) {
+                final int cx = x + ox;
+                final int cz = z + oz;
+                if ((ox == 0 && oz == 0)
+                        || cx >> 5 != x >> 5 || cz >> 5 != z >> 5
+                        || !index.contains(cx, cz)) {
+                    continue;
+                }
+                final long key = ChunkManager.chunkKey(cx, cz);
+                synchronized (entries) {
+                    if (entries.containsKey(key) || !queued.add(key)) {
+                        continue;
+                    }
+                }
+                try {
+                    worker.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                load(cx, cz, key);
+                            } finally {
+                                synchronized (entries) {
+                                    queued.remove(key);
+                                }
+                            }
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    synchronized (entries) {
+                        queued.remove(key);
+                    }
+                    dropped.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    private void load(int x, int z, long key) {
+        // Live chunks and those waiting to be saved are never
+        // served from the storage
+        if (chunkManager.hasNewerCopy(x, z)) {
+            return;
+        }
+        int hash = chunkManager.getIndex().getHash(x, z);
+        if (hash == 0) {
+            return;
+        }
+        ByteBuf record = chunkManager.readRecord(x, z);
+        if (record == null) {
+            return;
+        }
+        // The record is already a copy read off the disk, the slice
+        // keeps it alive without the piece table
+        ChunkRecord.skipTable(record);
+        ByteBuf data = record.slice();
+        synchronized (entries) {
+            remove(key);
+            entries.put(key, new Entry(hash, data));
+            size += data.capacity();
+            trim();
+        }
+        prefetched.incrementAndGet();
+    }
+
+    /**
+     * Stops the prefetcher and drops everything it has read
+     */
+    public void close() {
+        worker.shutdownNow();
+        synchronized (entries) {
+            for (Entry entry : entries.values()) {
+                entry.data.release();
+            }
+            entries.clear();
+            size = 0;
+        }
+    }
+
+    private void remove(long key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            evicted(entry);
+        }
+    }
+
+    // Evicts the least recently used entries until the cache
+    // fits within its limit
+    private void trim() {
+        Iterator<Entry> it = entries.values().iterator();
+        while (size > maxBytes && it.hasNext()) {
+            Entry entry = it.next();
+            it.remove();
+            evicted(entry);
+        }
+    }
+
+    private void evicted(Entry entry) {
+        size -= entry.data.capacity();
+        entry.data.release();
+        if (!entry.used) {
+            wasted.incrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the number of chunks read ahead of time
+     *
+     * @return The number of prefetched chunks
+     */
+    public long getPrefetchedCount() {
+        return prefetched.get();
+    }
+
+    /**
+     * Returns the number of prefetched chunks which were requested
+     *
+     * @return The number of hits
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of prefetched chunks dropped without ever
+     * being requested
+     *
+     * @return The number of wasted reads
+     */
+    public long getWastedCount() {
+        return wasted.get();
+    }
+
+    /**
+     * Returns the number of prefetches dropped because the queue
+     * was full
+     *
+     * @return The number of dropped prefetches
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Returns the fraction of prefetched chunks which were requested
+     *
+     * @return The hit rate between 0 and 1
+     */
+    public double getHitRate() {
+        long count = prefetched.get();
+        return count == 0 ? 0 : (double) hits.get() / count;
+    }
+
+    private static class Entry {
+        private final int hash;
+        private final ByteBuf data;
+        private boolean used;
+
+        private Entry(int hash, ByteBuf data) {
+            this.hash = hash;
+            this.data = data;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2014 Matthew Collins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.thinkofdeath.thinkcraft.bukkit.world;
+
+import io.netty.buffer.ByteBuf;
+
+import java.util.zip.CRC32;
+
+/**
+ * The format chunks are stored in. Each record is the gzip stream
+ * sent to the map viewer prefixed by a table of the pieces (the
+ * chunk header, each section and the biomes) the stream was
+ * compressed in. Every piece is deflated on its own and flushed to
+ * a byte boundary so, when a chunk is saved again, the pieces that
+ * haven't changed are copied from the old record instead of being
+ * compressed again.
+ * <pre>
+ * u8       piece count
+ * for each piece:
+ *   u8     piece id (0-15 a section, 16 the header, 17 the biomes)
+ *   i32    crc32 of the uncompressed piece
+ *   i32    uncompressed length
+ *   i32    compressed length
+ * ...      gzip stream
+ * </pre>
+ */
+public class ChunkRecord {
+
+    /**
+     * The id of the piece holding the chunk's header
+     */
+    public static final int HEADER_PIECE = 16;
+    /**
+     * The id of the piece holding the chunk's biomes
+     */
+    public static final int BIOME_PIECE = 17;
+    /**
+     * The most pieces a chunk can be split into
+     */
+    public static final int MAX_PIECES = 18;
+
+    private static final int ENTRY_SIZE = 13;
+
+    private ChunkRecord() {
+    }
+
+    /**
+     * Moves the reader index of the record past the piece table so
+     * that only the gzip stream is readable
+     *
+     * @param record
+     *         The stored record
+     */
+    public static void skipTable(ByteBuf record) {
+        record.skipBytes(1 + record.getUnsignedByte(record.readerIndex()) * ENTRY_SIZE);
+    }
+
+    /**
+     * Builds a record from an encoded chunk, reusing the compressed
+     * pieces of the old record where they are unchanged
+     *
+     * @param compressor
+     *         The compressor to use for the changed pieces
+     * @param raw
+     *         The encoded chunk
+     * @param pieceIds
+     *         The id of each piece
+     * @param pieceEnds
+     *         The index in raw each piece ends at
+     * @param pieceCount
+     *         The number of pieces
+     * @param old
+     *         The previously stored record or null
+     * @param out
+     *         The buffer to write the record to
+     * @return The number of pieces reused from the old record
+     */
+    public static int build(ChunkCompressor compressor, ByteBuf raw, int[] pieceIds, int[] pieceEnds, int pieceCount,
+                            ByteBuf old, ByteBuf out) {
+        // Locate the pieces of the old record
+        int oldCount = 0;
+        int[] oldIds = null;
+        int[] oldCrcs = null;
+        int[] oldLengths = null;
+        int[] oldOffsets = null;
+        int[] oldSizes = null;
+        if (old != null) {
+            int base = old.readerIndex();
+            oldCount = old.getUnsignedByte(base);
+            oldIds = new int[oldCount];
+            oldCrcs = new int[oldCount];
+            oldLengths = new int[oldCount];
+            oldOffsets = new int[oldCount];
+            oldSizes = new int[oldCount];
+            int offset = base + 1 + oldCount * ENTRY_SIZE + ChunkCompressor.HEADER_SIZE;
+            for (int i = 0; i < oldCount; i++) {
+                int entry = base + 1 + i * ENTRY_SIZE;
+                oldIds[i] = old.getUnsignedByte(entry);
+                oldCrcs[i] = old.getInt(entry + 1);
+                oldLengths[i] = old.getInt(entry + 5);
+                oldSizes[i] = old.getInt(entry + 9);
+                oldOffsets[i] = offset;
+                offset += oldSizes[i];
+            }
+        }
+
+        int tableStart = out.writerIndex();
+        out.writeByte(pieceCount);
+        out.writeZero(pieceCount * ENTRY_SIZE);
+        ChunkCompressor.writeHeader(out);
+
+        CRC32 crc = new CRC32();
+        byte[] array = raw.array();
+        int arrayOffset = raw.arrayOffset();
+        int reused = 0;
+        int start = raw.readerIndex();
+        for (int i = 0; i < pieceCount; i++) {
+            int length = pieceEnds[i] - start;
+            crc.reset();
+            crc.update(array, arrayOffset + start, length);
+            int pieceCrc = (int) crc.getValue();
+
+            int compressedStart = out.writerIndex();
+            int match = -1;
+            for (int j = 0; j < oldCount; j++) {
+                if (oldIds[j] == pieceIds[i] && oldCrcs[j] == pieceCrc && oldLengths[j] == length) {
+                    match = j;
+                    break;
+                }
+            }
+            if (match != -1) {
+                out.writeBytes(old, oldOffsets[match], oldSizes[match]);
+                reused++;
+            } else {
+                compressor.compressPiece(raw, start, length, out);
+            }
+
+            int entry = tableStart + 1 + i * ENTRY_SIZE;
+            out.setByte(entry, pieceIds[i]);
+            out.setInt(entry + 1, pieceCrc);
+            out.setInt(entry + 5, length);
+            out.setInt(entry + 9, out.writerIndex() - compressedStart);
+            start = pieceEnds[i];
+        }
+
+        crc.reset();
+        crc.update(array, arrayOffset + raw.readerIndex(), raw.readableBytes());
+        ChunkCompressor.finish(out, (int) crc.getValue(), raw.readableBytes());
+        return reused;
+    }
+}
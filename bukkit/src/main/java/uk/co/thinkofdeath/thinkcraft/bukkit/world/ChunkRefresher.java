@@ -0,0 +1,256 @@
+/*
+ * Copyright 2014 Matthew Collins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.thinkofdeath.thinkcraft.bukkit.world;
+
+import org.bukkit.scheduler.BukkitTask;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the stored copies of requested loaded chunks fresh so
+ * requests for them can be served from the storage instead of
+ * waiting for a snapshot on the main thread.
+ * <p>
+ * Only chunks that have been requested are tracked. Every tick the
+ * ones that are due a refresh (half way to the maximum staleness)
+ * are snapshotted, most requested first, within a time budget and
+ * handed to the save queue. A chunk only counts as fresh once the
+ * save queue reports its snapshot as written, and then only from
+ * the time the snapshot was taken. Chunks that fall behind are
+ * simply not reported as fresh, so the staleness bound holds even
+ * when the server or the save queue can't keep up. Chunks whose
+ * requests have faded away are dropped.
+ */
+public class ChunkRefresher implements Runnable, ChunkSaveQueue.SaveListener {
+
+    private final ChunkManager chunkManager;
+    private final long maxStalenessNanos;
+    private final long budgetNanos;
+    private final BukkitTask task;
+
+    // Guarded by chunks
+    private final HashMap<Long, State> chunks = new HashMap<>();
+
+    private final AtomicLong refreshed = new AtomicLong();
+    private final AtomicLong servedFresh = new AtomicLong();
+
+    /**
+     * Creates and starts a refresher for the chunk manager's world
+     *
+     * @param chunkManager
+     *         The chunk manager to refresh the chunks of
+     * @param maxStaleness
+     *         The maximum age in seconds of a stored copy served in
+     *         place of the live chunk
+     * @param budget
+     *         The time in milliseconds that may be spent per tick
+     */
+    public ChunkRefresher(ChunkManager chunkManager, double maxStaleness, double budget) {
+        this.chunkManager = chunkManager;
+        maxStalenessNanos = (long) (maxStaleness * 1000000000L);
+        budgetNanos = (long) (budget * 1000000);
+        chunkManager.getSaveQueue().setListener(this);
+        task = chunkManager.getPlugin().getServer().getScheduler()
+                .runTaskTimer(chunkManager.getPlugin(), this, 1, 1);
+    }
+
+    /**
+     * Stops refreshing the chunk
+     *
+     * @param x
+     *         The x position of the chunk
+     * @param z
+     *         The z position of the chunk
+     */
+    public void untrack(int x, int z) {
+        synchronized (chunks) {
+            chunks.remove(ChunkManager.chunkKey(x, z));
+        }
+    }
+
+    /**
+     * Records a request for the loaded chunk, starting to refresh it
+     * if needed, and returns whether its stored copy is within the
+     * staleness bound
+     *
+     * @param x
+     *         The x position of the chunk
+     * @param z
+     *         The z position of the chunk
+     * @return Whether the stored copy can be served
+     */
+    public boolean requestFresh(int x, int z) {
+        long key = ChunkManager.chunkKey(x, z);
+        synchronized (chunks) {
+            State state = chunks.get(key);
+            if (state == null) {
+                state = new State(x, z);
+                state.requests = 1;
+                chunks.put(key, state);
+                return false;
+            }
+            state.requests++;
+            if (state.refreshedAt == 0 || System.nanoTime() - state.refreshedAt > maxStalenessNanos) {
+                return false;
+            }
+        }
+        servedFresh.incrementAndGet();
+        return true;
+    }
+
+    @Override
+    public void run() {
+        long start = System.nanoTime();
+        List<State> due = new ArrayList<>();
+        synchronized (chunks) {
+            Iterator<State> it = chunks.values().iterator();
+            while (it.hasNext()) {
+                State state = it.next();
+                if (state.saving != null) {
+                    if (start - state.savedFrom <= maxStalenessNanos) {
+                        continue;
+                    }
+                    // The save failed or was replaced by another
+                    // save of the chunk, try again
+                    state.saving = null;
+                }
+                if (state.refreshedAt == 0 || start - state.refreshedAt >= maxStalenessNanos / 2) {
+                    if (state.requests == 0) {
+                        // No one has asked for it since the last refresh
+                        it.remove();
+                        continue;
+                    }
+                    state.age = state.refreshedAt == 0 ? Long.MAX_VALUE : start - state.refreshedAt;
+                    state.priority = state.requests;
+                    due.add(state);
+                }
+            }
+        }
+        if (due.isEmpty()) {
+            return;
+        }
+        Collections.sort(due, new Comparator<State>() {
+            @Override
+            public int compare(State o1, State o2) {
+                if (o1.priority != o2.priority) {
+                    return o2.priority - o1.priority;
+                }
+                return Long.compare(o2.age, o1.age);
+            }
+        });
+
+        int taken = 0;
+        for (State state : due) {
+            if (taken > 0 && System.nanoTime() - start >= budgetNanos) {
+                break;
+            }
+            long now = System.nanoTime();
+            ChunkData snapshot = chunkManager.takeSnapshot(state.x, state.z);
+            if (snapshot == null) {
+                // Unloaded since it was requested
+                untrack(state.x, state.z);
+                continue;
+            }
+            synchronized (chunks) {
+                state.saving = snapshot;
+                state.savedFrom = now;
+                // Let old interest fade
+                state.requests >>= 1;
+            }
+            chunkManager.getSaveQueue().queue(snapshot);
+            taken++;
+        }
+        refreshed.addAndGet(taken);
+    }
+
+    @Override
+    public void chunkSaved(ChunkData chunk) {
+        synchronized (chunks) {
+            State state = chunks.get(ChunkManager.chunkKey(chunk.getX(), chunk.getZ()));
+            if (state != null && state.saving == chunk) {
+                state.refreshedAt = state.savedFrom;
+                state.saving = null;
+            }
+        }
+    }
+
+    /**
+     * Stops refreshing chunks
+     */
+    public void close() {
+        task.cancel();
+        chunkManager.getSaveQueue().setListener(null);
+        synchronized (chunks) {
+            chunks.clear();
+        }
+    }
+
+    /**
+     * Returns the number of requested chunks being refreshed
+     *
+     * @return The number of tracked chunks
+     */
+    public int getTrackedCount() {
+        synchronized (chunks) {
+            return chunks.size();
+        }
+    }
+
+    /**
+     * Returns the number of refresh snapshots taken since start up
+     *
+     * @return The number of refreshes
+     */
+    public long getRefreshedCount() {
+        return refreshed.get();
+    }
+
+    /**
+     * Returns the number of requests for live chunks served from
+     * the stored copy
+     *
+     * @return The number of requests
+     */
+    public long getServedFreshCount() {
+        return servedFresh.get();
+    }
+
+    private static class State {
+        private final int x;
+        private final int z;
+        // Guarded by chunks
+        private long refreshedAt;
+        private int requests;
+        // The snapshot waiting to be written and when it was taken
+        private ChunkData saving;
+        private long savedFrom;
+        // Captured at the start of a tick
+        private long age;
+        private int priority;
+
+        private State(int x, int z) {
+            this.x = x;
+            this.z = z;
+        }
+    }
+}
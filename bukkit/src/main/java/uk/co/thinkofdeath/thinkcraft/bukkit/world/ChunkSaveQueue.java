@@ -0,0 +1,427 @@
+/*
+ * Copyright 2014 Matthew Collins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.thinkofdeath.thinkcraft.bukkit.world;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Write-behind queue for chunks. Repeated saves of the same
+ * chunk are merged and pending saves are written a region at a time
+ * so that each region file is opened and its header updated once per
+ * batch. A region is only ever written by one worker at a time so an
+ * older copy of a chunk can't overwrite a newer one.
+ * <p>
+ * Chunks from a batch that failed to write are queued again, unless
+ * a newer copy was queued in the meantime, and their region is
+ * retried with an increasing delay.
+ */
+public class ChunkSaveQueue {
+
+    // Limits the memory used by a single batch of encoded chunks
+    private static final int MAX_BATCH_SIZE = 128;
+    private static final long MIN_RETRY_DELAY = TimeUnit.SECONDS.toNanos(1);
+    private static final long MAX_RETRY_DELAY = TimeUnit.MINUTES.toNanos(1);
+
+    private final ChunkManager chunkManager;
+    private final ScheduledThreadPoolExecutor workers;
+    private final int maxWorkers;
+
+    // Guarded by pending
+    private final LinkedHashMap<Long, ChunkData> pending = new LinkedHashMap<>();
+    private final HashMap<Long, ChunkData> writing = new HashMap<>();
+    // Regions currently being written by a worker
+    private final HashSet<Long> busyRegions = new HashSet<>();
+    // Regions whose last write failed
+    private final HashMap<Long, Backoff> failedRegions = new HashMap<>();
+    private int activeWorkers;
+    private boolean closed;
+
+    private volatile SaveListener listener;
+
+    private final AtomicLong saved = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+
+    public ChunkSaveQueue(ChunkManager chunkManager, final String name, int maxWorkers) {
+        this.chunkManager = chunkManager;
+        this.maxWorkers = Math.max(1, maxWorkers);
+        workers = new ScheduledThreadPoolExecutor(this.maxWorkers, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ThinkMap Chunk Saver (" + name + ") #" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        // Pending retries are written by close instead
+        workers.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    }
+
+    /**
+     * Sets the listener told about chunks once they have been
+     * written
+     *
+     * @param listener
+     *         The listener or null to remove it
+     */
+    public void setListener(SaveListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Queues the chunk to be saved, replacing any pending save
+     * for the same chunk
+     *
+     * @param chunk
+     *         The chunk to save
+     * @throws IllegalStateException
+     *         If the queue has been closed
+     */
+    public void queue(ChunkData chunk) {
+        synchronized (pending) {
+            if (closed) {
+                throw new IllegalStateException("The save queue has been closed");
+            }
+            if (pending.put(ChunkManager.chunkKey(chunk.getX(), chunk.getZ()), chunk) != null) {
+                coalesced.incrementAndGet();
+            }
+            startWorkers();
+        }
+    }
+
+    // Guarded by pending
+    private void startWorkers() {
+        while (activeWorkers < maxWorkers && activeWorkers < pending.size() && !workers.isShutdown()) {
+            activeWorkers++;
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            });
+        }
+    }
+
+    /**
+     * Runs the task on the calling thread while no worker is writing
+     * the region. Saves for the region wait until the task is done,
+     * so writers outside of the queue can't interleave with it or
+     * overwrite a newer copy queued in the meantime as long as they
+     * check {@link #getPending(int, int)} from within the task
+     *
+     * @param rx
+     *         The x position of the region
+     * @param rz
+     *         The z position of the region
+     * @param task
+     *         The task to run
+     * @param <T>
+     *         The type of the task's result
+     * @return The task's result
+     * @throws IOException
+     *         If the task failed
+     */
+    public <T> T runExclusive(int rx, int rz, RegionTask<T> task) throws IOException {
+        long key = regionKey(rx, rz);
+        synchronized (pending) {
+            boolean interrupted = false;
+            while (busyRegions.contains(key)) {
+                try {
+                    pending.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            busyRegions.add(key);
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            return task.run();
+        } finally {
+            synchronized (pending) {
+                busyRegions.remove(key);
+                pending.notifyAll();
+                // Workers that found the region busy have retired
+                startWorkers();
+            }
+        }
+    }
+
+    /**
+     * Returns the newest copy of the chunk which hasn't been
+     * written to the region file yet
+     *
+     * @param x
+     *         The x position of the chunk
+     * @param z
+     *         The z position of the chunk
+     * @return The chunk or null if there isn't a pending save
+     */
+    public ChunkData getPending(int x, int z) {
+        long key = ChunkManager.chunkKey(x, z);
+        synchronized (pending) {
+            ChunkData chunk = pending.get(key);
+            if (chunk == null) {
+                chunk = writing.get(key);
+            }
+            return chunk;
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            List<ChunkData> batch = nextBatch();
+            if (batch == null) {
+                return;
+            }
+            ChunkData first = batch.get(0);
+            int rx = first.getX() >> 5;
+            int rz = first.getZ() >> 5;
+            boolean success = false;
+            try {
+                chunkManager.writeRegion(rx, rz, batch);
+                success = true;
+                saved.addAndGet(batch.size());
+                batches.incrementAndGet();
+                SaveListener listener = this.listener;
+                if (listener != null) {
+                    for (ChunkData chunk : batch) {
+                        listener.chunkSaved(chunk);
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                chunkManager.getPlugin().getLogger().log(Level.SEVERE, "Failed to save chunks", e);
+            } finally {
+                synchronized (pending) {
+                    for (ChunkData chunk : batch) {
+                        long key = ChunkManager.chunkKey(chunk.getX(), chunk.getZ());
+                        if (writing.get(key) == chunk) {
+                            writing.remove(key);
+                        }
+                        // Keep the failed copy unless a newer one has
+                        // been queued
+                        if (!success && !closed && !pending.containsKey(key)) {
+                            pending.put(key, chunk);
+                        }
+                    }
+                    long region = regionKey(rx, rz);
+                    if (success) {
+                        failedRegions.remove(region);
+                    } else if (!closed) {
+                        scheduleRetry(region);
+                    } else {
+                        chunkManager.getPlugin().getLogger().severe(
+                                "Lost " + batch.size() + " chunks which failed to save while closing");
+                    }
+                    busyRegions.remove(region);
+                    pending.notifyAll();
+                }
+            }
+        }
+    }
+
+    // Guarded by pending
+    private void scheduleRetry(long region) {
+        Backoff backoff = failedRegions.get(region);
+        if (backoff == null) {
+            backoff = new Backoff();
+            failedRegions.put(region, backoff);
+        }
+        backoff.delay = backoff.delay == 0 ? MIN_RETRY_DELAY : Math.min(backoff.delay * 2, MAX_RETRY_DELAY);
+        backoff.retryAt = System.nanoTime() + backoff.delay;
+        if (workers.isShutdown()) {
+            return;
+        }
+        // Workers skip the region until then and may have all retired
+        workers.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (pending) {
+                    startWorkers();
+                }
+            }
+        }, backoff.delay, TimeUnit.NANOSECONDS);
+    }
+
+    // Guarded by pending
+    private boolean isWaitingForRetry(long region, long now) {
+        if (closed) {
+            // One last try
+            return false;
+        }
+        Backoff backoff = failedRegions.get(region);
+        return backoff != null && now - backoff.retryAt < 0;
+    }
+
+    // Takes the pending saves for the region of the oldest pending
+    // save whose region isn't already being written, returns null
+    // (and retires the worker) when there is nothing it can do. Saves
+    // left for a busy region are picked up by the worker writing it
+    // once it is done
+    private List<ChunkData> nextBatch() {
+        synchronized (pending) {
+            ChunkData first = null;
+            long now = System.nanoTime();
+            for (ChunkData chunk : pending.values()) {
+                long region = regionKey(chunk.getX() >> 5, chunk.getZ() >> 5);
+                if (!busyRegions.contains(region) && !isWaitingForRetry(region, now)) {
+                    first = chunk;
+                    break;
+                }
+            }
+            if (first == null) {
+                activeWorkers--;
+                return null;
+            }
+            ArrayList<ChunkData> batch = new ArrayList<>();
+            int rx = first.getX() >> 5;
+            int rz = first.getZ() >> 5;
+            busyRegions.add(regionKey(rx, rz));
+            Iterator<Map.Entry<Long, ChunkData>> it = pending.entrySet().iterator();
+            while (it.hasNext() && batch.size() < MAX_BATCH_SIZE) {
+                Map.Entry<Long, ChunkData> e = it.next();
+                ChunkData chunk = e.getValue();
+                if (chunk.getX() >> 5 == rx && chunk.getZ() >> 5 == rz) {
+                    batch.add(chunk);
+                    writing.put(e.getKey(), chunk);
+                    it.remove();
+                }
+            }
+            return batch;
+        }
+    }
+
+    /**
+     * Stops the workers and writes out anything still pending on the
+     * calling thread, ignoring any retry delays. Chunks can't be
+     * queued once this has been called
+     */
+    public void close() {
+        workers.shutdown();
+        try {
+            workers.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (pending) {
+            closed = true;
+            activeWorkers++;
+        }
+        drain();
+    }
+
+    private static long regionKey(int rx, int rz) {
+        return ((long) rx << 32) | (rz & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Returns the number of chunks waiting to be written
+     *
+     * @return The queue depth
+     */
+    public int getQueueDepth() {
+        synchronized (pending) {
+            return pending.size() + writing.size();
+        }
+    }
+
+    /**
+     * Returns the number of chunks written since start up
+     *
+     * @return The number of saved chunks
+     */
+    public long getSavedCount() {
+        return saved.get();
+    }
+
+    /**
+     * Returns the number of saves that were replaced by a newer
+     * copy before being written
+     *
+     * @return The number of coalesced saves
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    /**
+     * Returns the number of region batches written since start up
+     *
+     * @return The number of batches
+     */
+    public long getBatchCount() {
+        return batches.get();
+    }
+
+    /**
+     * Work done on a region while it is held by
+     * {@link #runExclusive(int, int, RegionTask)}
+     *
+     * @param <T>
+     *         The type of the result
+     */
+    public interface RegionTask<T> {
+
+        /**
+         * Runs the task
+         *
+         * @return The result
+         * @throws IOException
+         *         If the task failed
+         */
+        T run() throws IOException;
+    }
+
+    /**
+     * Told about chunks once they are in the region file
+     */
+    public interface SaveListener {
+
+        /**
+         * Called on a save worker once the chunk has been written, or
+         * skipped because the stored copy already matched it. Chunks
+         * replaced by a newer copy before being written are never
+         * reported
+         *
+         * @param chunk
+         *         The chunk that was queued
+         */
+        void chunkSaved(ChunkData chunk);
+    }
+
+    private static class Backoff {
+        private long delay;
+        private long retryAt;
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2014 Matthew Collins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.thinkofdeath.thinkcraft.bukkit.world;
+
+import io.netty.buffer.ByteBuf;
+
+import java.io.IOException;
+
+/**
+ * Stores the gzip'd chunk data for a world. Implementations must be
+ * safe to use from multiple threads
+ */
+public interface ChunkStorage {
+
+    /**
+     * Returns the stored data for the chunk. The caller must release
+     * the returned buffer
+     *
+     * @param x
+     *         The x position of the chunk
+     * @param z
+     *         The z position of the chunk
+     * @return The stored data or null if the chunk isn't stored
+     * @throws IOException
+     *         If the data couldn't be read
+     */
+    ByteBuf read(int x, int z) throws IOException;
+
+    /**
+     * Stores the data for the chunk, replacing any previous copy. The
+     * write may not be visible on disk until {@link #flush()} is
+     * called
+     *
+     * @param x
+     *         The x position of the chunk
+     * @param z
+     *         The z position of the chunk
+     * @param data
+     *         The gzip'd chunk data
+     * @param hash
+     *         The content hash of the chunk, 0 if unknown
+     * @throws IOException
+     *         If the data couldn't be written
+     */
+    void write(int x, int z, ByteBuf data, int hash) throws IOException;
+
+    /**
+     * Writes out any metadata changed by previous writes
+     *
+     * @throws IOException
+     *         If the metadata couldn't be written
+     */
+    void flush() throws IOException;
+
+    /**
+     * Adds every stored chunk and its content hash to the index
+     *
+     * @param index
+     *         The index to add to
+     * @throws IOException
+     *         If the stored chunks couldn't be listed
+     */
+    void load(ChunkIndex index) throws IOException;
+
+    /**
+     * Flushes and closes the storage
+     */
+    void close();
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2014 Matthew Collins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.thinkofdeath.thinkcraft.bukkit.world;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Stores a top-down summary of every saved chunk so that overviews
+ * don't need to decode whole chunks. Summaries are generated at save
+ * time and kept in one file per region next to the chunk storage, at
+ * a fixed offset per chunk.
+ * <pre>
+ * for each column (z * 16 + x):
+ *   u8     height of the highest non-air block
+ *   u16    block state (id &lt;&lt; 4 | data) of that block, 0 if
+ *          the column is empty
+ *   u8     biome id
+ * </pre>
+ * Whether a summary exists for a chunk is tracked by the
+ * {@link ChunkIndex}, slots for chunks that were never saved are
+ * left empty.
+ */
+public class ChunkSummaries {
+
+    public static final int COLUMN_SIZE = 4;
+    public static final int SUMMARY_SIZE = 16 * 16 * COLUMN_SIZE;
+
+    private static final int REGION_LOCK_STRIPES = 64;
+
+    private final File folder;
+    // Striped by region so that regions can be read and written in parallel
+    private final ReadWriteLock[] regionLocks = new ReadWriteLock[REGION_LOCK_STRIPES];
+
+    /**
+     * Creates summary storage in the folder
+     *
+     * @param folder
+     *         The folder to store the summary files in
+     */
+    public ChunkSummaries(File folder) {
+        this.folder = folder;
+        for (int i = 0; i < regionLocks.length; i++) {
+            regionLocks[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    /**
+     * Generates the summary of the chunk
+     *
+     * @param chunk
+     *         The chunk to summarise
+     * @param out
+     *         The array to write the summary to, at least
+     *         {@link #SUMMARY_SIZE} bytes
+     */
+    public static void summarise(ChunkData chunk, byte[] out) {
+        int top = 15;
+        while (top >= 0 && chunk.isSectionEmpty(top)) {
+            top--;
+        }
+        int offset = 0;
+        for (int z = 0; z < 16; z++) {
+            for (int x = 0; x < 16; x++) {
+                int height = 0;
+                int state = 0;
+                column:
+                for (int section = top; section >= 0; section--) {
+                    if (chunk.isSectionEmpty(section)) {
+                        continue;
+                    }
+                    for (int y = (section << 4) + 15; y >= section << 4; y--) {
+                        int id = chunk.getBlockTypeId(x, y, z);
+                        if (id != 0) {
+                            height = y;
+                            state = (id << 4) | chunk.getBlockData(x, y, z);
+                            break column;
+                        }
+                    }
+                }
+                out[offset++] = (byte) height;
+                out[offset++] = (byte) (state >> 8);
+                out[offset++] = (byte) state;
+                out[offset++] = (byte) chunk.getBiomeId(x, z);
+            }
+        }
+    }
+
+    /**
+     * Writes the summaries of chunks from a single region
+     *
+     * @param rx
+     *         The x position of the region
+     * @param rz
+     *         The z position of the region
+     * @param chunks
+     *         The chunks the summaries belong to
+     * @param summaries
+     *         The summaries, a null entry skips that chunk
+     * @throws IOException
+     *         If the summaries couldn't be written
+     */
+    public void write(int rx, int rz, List<? extends ChunkData> chunks, byte[][] summaries) throws IOException {
+        if (!folder.exists() && !folder.mkdirs()) {
+            throw new IOException("Failed to create " + folder);
+        }
+        Lock lock = regionLock(rx, rz).writeLock();
+        lock.lock();
+        try (RandomAccessFile file = new RandomAccessFile(regionFile(rx, rz), "rw")) {
+            for (int i = 0; i < summaries.length; i++) {
+                if (summaries[i] == null) {
+                    continue;
+                }
+                ChunkData chunk = chunks.get(i);
+                file.seek((long) RegionFile.chunkId(chunk.getX(), chunk.getZ()) * SUMMARY_SIZE);
+                file.write(summaries[i], 0, SUMMARY_SIZE);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads the summary of the chunk
+     *
+     * @param x
+     *         The x position of the chunk
+     * @param z
+     *         The z position of the chunk
+     * @return The summary or null if the region has no summaries
+     * @throws IOException
+     *         If the summary couldn't be read
+     */
+    public byte[] read(int x, int z) throws IOException {
+        Lock lock = regionLock(x >> 5, z >> 5).readLock();
+        lock.lock();
+        try {
+            File file = regionFile(x >> 5, z >> 5);
+            if (!file.exists()) {
+                return null;
+            }
+            byte[] summary = new byte[SUMMARY_SIZE];
+            try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+                long offset = (long) RegionFile.chunkId(x, z) * SUMMARY_SIZE;
+                if (in.length() < offset + SUMMARY_SIZE) {
+                    return null;
+                }
+                in.seek(offset);
+                in.readFully(summary);
+            }
+            return summary;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Returns the lock guarding the summary file at the region position
+    private ReadWriteLock regionLock(int rx, int rz) {
+        int hash = rx * 31 + rz;
+        hash ^= (hash >>> 16);
+        return regionLocks[hash & (REGION_LOCK_STRIPES - 1)];
+    }
+
+    private File regionFile(int rx, int rz) {
+        return new File(folder, String.format("summary_%d-%d.dat", rx, rz));
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2014 Matthew Collins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.thinkofdeath.thinkcraft.bukkit.world;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import org.bukkit.ChunkSnapshot;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Measures compression throughput and ratio at every deflate level
+ * using real chunk data
+ */
+public class CompressionBenchmark {
+
+    private static final int ROUNDS = 3;
+
+    private final List<ChunkSnapshot> snapshots;
+    private final ByteBufAllocator allocator = PooledByteBufAllocator.DEFAULT;
+
+    /**
+     * Creates a benchmark over the passed snapshots
+     *
+     * @param snapshots
+     *         The chunks to compress
+     */
+    public CompressionBenchmark(List<ChunkSnapshot> snapshots) {
+        this.snapshots = snapshots;
+    }
+
+    /**
+     * Runs the benchmark. This may take a while and should be called
+     * off the main thread
+     *
+     * @return A line of results for each compression level
+     */
+    public List<String> run() {
+        List<String> results = new ArrayList<>();
+        List<ByteBuf> encoded = new ArrayList<>();
+        ChunkEncoder encoder = new ChunkEncoder();
+        long rawSize = 0;
+        try {
+            for (ChunkSnapshot snapshot : snapshots) {
+                ByteBuf buf = allocator.heapBuffer();
+                encoded.add(buf);
+                encoder.encode(new SnapshotChunkData(snapshot), buf);
+                rawSize += buf.readableBytes();
+            }
+            ByteBuf out = allocator.heapBuffer();
+            try {
+                for (int level = Deflater.NO_COMPRESSION; level <= Deflater.BEST_COMPRESSION; level++) {
+                    ChunkCompressor compressor = new ChunkCompressor(level);
+                    // Warm up
+                    long compressedSize = compressAll(compressor, encoded, out);
+
+                    long start = System.nanoTime();
+                    for (int i = 0; i < ROUNDS; i++) {
+                        compressAll(compressor, encoded, out);
+                    }
+                    long time = System.nanoTime() - start;
+
+                    double seconds = time / 1000000000.0;
+                    double megabytes = (rawSize * ROUNDS) / (1024.0 * 1024.0);
+                    results.add(String.format("Level %d: %.1f MB/s, %.1f chunks/ms, ratio %.3f (%d -> %d bytes)",
+                            level,
+                            megabytes / seconds,
+                            (encoded.size() * ROUNDS) / (time / 1000000.0),
+                            (double) compressedSize / rawSize,
+                            rawSize, compressedSize));
+                }
+            } finally {
+                out.release();
+            }
+        } finally {
+            for (ByteBuf buf : encoded) {
+                buf.release();
+            }
+        }
+        return results;
+    }
+
+    private static long compressAll(ChunkCompressor compressor, List<ByteBuf> encoded, ByteBuf out) {
+        long size = 0;
+        for (ByteBuf buf : encoded) {
+            out.clear();
+            compressor.compress(buf, out);
+            size += out.readableBytes();
+        }
+        return size;
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2014 Matthew Collins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.thinkofdeath.thinkcraft.bukkit.world;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed size pool of threads for encoding and compressing chunks
+ * requested by the map viewer, keeping that work off the network
+ * threads. The queue is bounded and work submitted while it is full
+ * is rejected instead of building up an ever growing backlog.
+ * Tasks implementing {@link Task} are told if they are dropped by
+ * {@link #shutdown()} so whoever waits on them isn't left hanging.
+ */
+public class EncodingExecutor {
+
+    private final ThreadPoolExecutor executor;
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong busyNanos = new AtomicLong();
+
+    /**
+     * Creates and starts the pool
+     *
+     * @param threads
+     *         The number of threads, 0 or less to use one per core
+     * @param queueSize
+     *         The maximum number of tasks waiting for a thread
+     */
+    public EncodingExecutor(int threads, int queueSize) {
+        if (threads <= 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "ThinkMap Chunk Encoder #" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Queues the task to be run on the pool
+     *
+     * @param task
+     *         The task to run
+     * @throws RejectedExecutionException
+     *         If the queue is full or the pool has been shut down
+     */
+    public void execute(Runnable task) {
+        try {
+            executor.execute(new TimedTask(task));
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            throw e;
+        }
+        submitted.incrementAndGet();
+    }
+
+    /**
+     * Stops the pool. Tasks still in the queue are dropped and told
+     * so, running tasks are given a few seconds to finish
+     */
+    public void shutdown() {
+        for (Runnable dropped : executor.shutdownNow()) {
+            Runnable task = ((TimedTask) dropped).task;
+            if (task instanceof Task) {
+                ((Task) task).dropped();
+            }
+        }
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns the number of threads in the pool
+     *
+     * @return The number of threads
+     */
+    public int getThreadCount() {
+        return executor.getMaximumPoolSize();
+    }
+
+    /**
+     * Returns the number of threads currently running a task
+     *
+     * @return The number of busy threads
+     */
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * Returns the number of tasks waiting for a thread
+     *
+     * @return The queue depth
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Returns the number of tasks accepted since start up
+     *
+     * @return The number of accepted tasks
+     */
+    public long getSubmittedCount() {
+        return submitted.get();
+    }
+
+    /**
+     * Returns the number of tasks that have finished running
+     *
+     * @return The number of finished tasks
+     */
+    public long getCompletedCount() {
+        return completed.get();
+    }
+
+    /**
+     * Returns the number of tasks rejected because the queue was full
+     *
+     * @return The number of rejected tasks
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * Returns the average time taken to run a task
+     *
+     * @return The time in milliseconds
+     */
+    public double getAverageTaskTime() {
+        long count = completed.get();
+        return count == 0 ? 0 : busyNanos.get() / 1000000.0 / count;
+    }
+
+    /**
+     * A task which needs to know when it won't be run
+     */
+    public interface Task extends Runnable {
+
+        /**
+         * Called instead of {@link #run()} when the pool is shut down
+         * before the task started
+         */
+        void dropped();
+    }
+
+    private class TimedTask implements Runnable {
+        private final Runnable task;
+
+        private TimedTask(Runnable task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            try {
+                task.run();
+            } finally {
+                busyNanos.addAndGet(System.nanoTime() - start);
+                completed.incrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,510 @@
+/*
+ * Copyright 2014 Matthew Collins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.thinkofdeath.thinkcraft.bukkit.world;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Stores chunks by appending them to segment files. The location of
+ * the newest copy of each chunk is kept in memory and rebuilt by
+ * scanning the segments at start up, so writes are purely sequential.
+ * <p>
+ * A background compactor copies the live chunks out of segments that
+ * are mostly made up of replaced copies and then deletes them.
+ * <pre>
+ * Each record:
+ * i32      magic
+ * i32      chunk x
+ * i32      chunk z
+ * i32      data length
+ * i32      content hash of the chunk
+ * i32      crc32 of the data
+ * u8[]     gzip'd chunk data
+ * </pre>
+ */
+public class LogChunkStorage implements ChunkStorage {
+
+    private static final int RECORD_MAGIC = 0x544D4C47;
+    private static final int RECORD_HEADER_SIZE = 24;
+    private static final Pattern SEGMENT_NAME = Pattern.compile("segment_(\\d+)\\.log");
+    // Segments with less live data than this are compacted
+    private static final double COMPACT_THRESHOLD = 0.5;
+    private static final long COMPACT_INTERVAL = 5;
+
+    private final File folder;
+    private final long segmentSize;
+    private final Logger logger;
+    private final ScheduledExecutorService compactor;
+
+    // Guarded by this
+    private final HashMap<Long, Location> index = new HashMap<>();
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private Segment active;
+    private boolean opened;
+
+    private final AtomicLong compactions = new AtomicLong();
+    private final AtomicLong reclaimed = new AtomicLong();
+
+    /**
+     * Creates a log storage in the folder
+     *
+     * @param folder
+     *         The folder to store the segment files in
+     * @param segmentSize
+     *         The size in bytes at which a new segment is started
+     * @param logger
+     *         The logger to report compaction failures to
+     */
+    public LogChunkStorage(File folder, long segmentSize, final Logger logger) {
+        this.folder = folder;
+        this.segmentSize = segmentSize;
+        this.logger = logger;
+        compactor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ThinkMap Compactor (" + LogChunkStorage.this.folder.getParentFile().getName() + ")");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        compactor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    compact();
+                } catch (IOException | RuntimeException e) {
+                    logger.log(Level.WARNING, "Failed to compact chunk storage", e);
+                }
+            }
+        }, COMPACT_INTERVAL, COMPACT_INTERVAL, TimeUnit.MINUTES);
+    }
+
+    @Override
+    public ByteBuf read(int x, int z) throws IOException {
+        Location location;
+        synchronized (this) {
+            open();
+            location = index.get(key(x, z));
+            if (location == null) {
+                return null;
+            }
+            location.segment.retain();
+        }
+        try {
+            return Unpooled.wrappedBuffer(location.segment.read(location));
+        } finally {
+            location.segment.release();
+        }
+    }
+
+    @Override
+    public synchronized void write(int x, int z, ByteBuf data, int hash) throws IOException {
+        open();
+        byte[] bytes = new byte[data.readableBytes()];
+        data.getBytes(data.readerIndex(), bytes);
+        append(x, z, hash, bytes);
+    }
+
+    // Appends the record to the active segment and points the index
+    // at it
+    private void append(int x, int z, int hash, byte[] data) throws IOException {
+        int recordSize = RECORD_HEADER_SIZE + data.length;
+        if (active == null || (active.size > 0 && active.size + recordSize > segmentSize)) {
+            int id = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+            active = new Segment(id, new File(folder, String.format("segment_%08d.log", id)));
+            segments.put(id, active);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        ByteBuffer record = ByteBuffer.allocate(recordSize);
+        record.putInt(RECORD_MAGIC)
+                .putInt(x)
+                .putInt(z)
+                .putInt(data.length)
+                .putInt(hash)
+                .putInt((int) crc.getValue())
+                .put(data)
+                .flip();
+        long position = active.size;
+        active.writeFully(record, position);
+        active.size += recordSize;
+        track(new Location(active, position, data.length, x, z, hash));
+    }
+
+    private void track(Location location) {
+        Location old = index.put(key(location.x, location.z), location);
+        if (old != null) {
+            old.segment.live -= old.recordSize();
+        }
+        location.segment.live += location.recordSize();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        // Records are self describing, there is nothing to flush
+    }
+
+    @Override
+    public synchronized void load(ChunkIndex chunkIndex) throws IOException {
+        open();
+        for (Location location : index.values()) {
+            chunkIndex.add(location.x, location.z, location.hash);
+        }
+    }
+
+    // Scans the existing segments to rebuild the index, this only
+    // happens once
+    private void open() throws IOException {
+        if (opened) {
+            return;
+        }
+        opened = true;
+        if (!folder.exists() && !folder.mkdirs()) {
+            throw new IOException("Failed to create " + folder);
+        }
+        File[] files = folder.listFiles();
+        if (files == null) {
+            throw new IOException("Failed to list " + folder);
+        }
+        for (File file : files) {
+            Matcher matcher = SEGMENT_NAME.matcher(file.getName());
+            if (matcher.matches()) {
+                int id = Integer.parseInt(matcher.group(1));
+                segments.put(id, new Segment(id, file));
+            }
+        }
+        for (Segment segment : segments.values()) {
+            // Only the newest segment can have been cut off part way
+            // through a write so only its data needs checking
+            scan(segment, segment == segments.lastEntry().getValue());
+        }
+        if (!segments.isEmpty()) {
+            active = segments.lastEntry().getValue();
+        }
+    }
+
+    // A damaged tail on the newest segment is a write cut off part way
+    // and is cut away. Older segments were complete when the next one
+    // was started so damage there is only logged, the rest of that
+    // segment isn't indexed and counts as dead space
+    private void scan(Segment segment, boolean newest) throws IOException {
+        long length = segment.channel.size();
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        while (position + RECORD_HEADER_SIZE <= length) {
+            header.clear();
+            segment.readFully(header, position);
+            header.flip();
+            int magic = header.getInt();
+            int x = header.getInt();
+            int z = header.getInt();
+            int size = header.getInt();
+            int hash = header.getInt();
+            int crc = header.getInt();
+            if (magic != RECORD_MAGIC || size < 0 || position + RECORD_HEADER_SIZE + size > length) {
+                break;
+            }
+            Location location = new Location(segment, position, size, x, z, hash);
+            if (newest) {
+                CRC32 check = new CRC32();
+                check.update(segment.read(location));
+                if ((int) check.getValue() != crc) {
+                    break;
+                }
+            }
+            track(location);
+            position += location.recordSize();
+        }
+        if (position != length) {
+            if (newest) {
+                logger.warning(String.format("Truncating %s from %d to %d bytes", segment.file.getName(), length, position));
+                segment.channel.truncate(position);
+            } else {
+                logger.severe(String.format("%s is damaged at byte %d of %d, ignoring the rest of it",
+                        segment.file.getName(), position, length));
+                position = length;
+            }
+        }
+        segment.size = position;
+    }
+
+    /**
+     * Copies the live chunks out of segments which are mostly dead
+     * space and deletes them
+     *
+     * @throws IOException
+     *         If a segment couldn't be compacted
+     */
+    public void compact() throws IOException {
+        List<Segment> candidates = new ArrayList<>();
+        synchronized (this) {
+            open();
+            for (Segment segment : segments.values()) {
+                if (segment != active && segment.live < segment.size * COMPACT_THRESHOLD) {
+                    candidates.add(segment);
+                }
+            }
+        }
+        for (Segment segment : candidates) {
+            compact(segment);
+        }
+    }
+
+    private void compact(Segment segment) throws IOException {
+        List<Location> live = new ArrayList<>();
+        synchronized (this) {
+            for (Location location : index.values()) {
+                if (location.segment == segment) {
+                    live.add(location);
+                }
+            }
+            segment.retain();
+        }
+        try {
+            // Read outside of the lock so requests aren't held up
+            List<byte[]> data = new ArrayList<>(live.size());
+            for (Location location : live) {
+                data.add(segment.read(location));
+            }
+            Set<Segment> written = new HashSet<>();
+            synchronized (this) {
+                for (int i = 0; i < live.size(); i++) {
+                    Location location = live.get(i);
+                    // Skip chunks that were replaced in the meantime
+                    if (index.get(key(location.x, location.z)) == location) {
+                        append(location.x, location.z, location.hash, data.get(i));
+                        if (written.add(active)) {
+                            active.retain();
+                        }
+                    }
+                }
+            }
+            try {
+                // The copies must be on disk before the only other copy
+                // is deleted
+                for (Segment copy : written) {
+                    copy.channel.force(false);
+                }
+            } finally {
+                for (Segment copy : written) {
+                    copy.release();
+                }
+            }
+            synchronized (this) {
+                segments.remove(segment.id);
+                reclaimed.addAndGet(segment.size - segment.live);
+                segment.deleted = true;
+                segment.evict();
+            }
+            compactions.incrementAndGet();
+        } finally {
+            segment.release();
+        }
+    }
+
+    @Override
+    public void close() {
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            for (Segment segment : segments.values()) {
+                segment.evict();
+            }
+            segments.clear();
+            index.clear();
+            active = null;
+        }
+    }
+
+    /**
+     * Returns the number of segment files
+     *
+     * @return The number of segments
+     */
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Returns the total size of the segment files
+     *
+     * @return The size in bytes
+     */
+    public synchronized long getTotalBytes() {
+        long total = 0;
+        for (Segment segment : segments.values()) {
+            total += segment.size;
+        }
+        return total;
+    }
+
+    /**
+     * Returns the size of the newest copies of every chunk
+     *
+     * @return The size in bytes
+     */
+    public synchronized long getLiveBytes() {
+        long total = 0;
+        for (Segment segment : segments.values()) {
+            total += segment.live;
+        }
+        return total;
+    }
+
+    /**
+     * Returns the number of segments compacted since start up
+     *
+     * @return The number of compactions
+     */
+    public long getCompactionCount() {
+        return compactions.get();
+    }
+
+    /**
+     * Returns the number of bytes freed by compaction since start up
+     *
+     * @return The size in bytes
+     */
+    public long getReclaimedBytes() {
+        return reclaimed.get();
+    }
+
+    private static long key(int x, int z) {
+        return ((long) x << 32) | (z & 0xFFFFFFFFL);
+    }
+
+    private static class Location {
+        private final Segment segment;
+        private final long position;
+        private final int length;
+        private final int x;
+        private final int z;
+        private final int hash;
+
+        private Location(Segment segment, long position, int length, int x, int z, int hash) {
+            this.segment = segment;
+            this.position = position;
+            this.length = length;
+            this.x = x;
+            this.z = z;
+            this.hash = hash;
+        }
+
+        private int recordSize() {
+            return RECORD_HEADER_SIZE + length;
+        }
+    }
+
+    private static class Segment {
+        private final int id;
+        private final File file;
+        private final RandomAccessFile raf;
+        private final FileChannel channel;
+        // Guarded by the storage
+        private long size;
+        private long live;
+        private boolean deleted;
+
+        // The storage holds one reference until the segment is evicted
+        private int references = 1;
+        private boolean evicted;
+
+        private Segment(int id, File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            raf = new RandomAccessFile(file, "rw");
+            channel = raf.getChannel();
+        }
+
+        private byte[] read(Location location) throws IOException {
+            byte[] data = new byte[location.length];
+            readFully(ByteBuffer.wrap(data), location.position + RECORD_HEADER_SIZE);
+            return data;
+        }
+
+        private void readFully(ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                int count = channel.read(buffer, position);
+                if (count < 0) {
+                    throw new IOException("Unexpected end of " + file.getName());
+                }
+                position += count;
+            }
+        }
+
+        private void writeFully(ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        }
+
+        private synchronized void retain() {
+            references++;
+        }
+
+        private synchronized void release() {
+            references--;
+            if (references == 0 && evicted) {
+                close();
+            }
+        }
+
+        private synchronized void evict() {
+            evicted = true;
+            release();
+        }
+
+        private void close() {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            if (deleted && !file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2014 Matthew Collins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.thinkofdeath.thinkcraft.bukkit.world;
+
+import io.netty.buffer.ByteBuf;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Stores chunks in region files of 32x32 chunks, updating chunks in
+ * place
+ */
+public class RegionChunkStorage implements ChunkStorage {
+
+    private static final int REGION_LOCK_STRIPES = 64;
+    private static final Pattern REGION_NAME = Pattern.compile("region_(-?\\d+)-(-?\\d+)\\.dat");
+
+    private final File folder;
+    // Striped by region so that regions can be read and written in parallel
+    private final ReadWriteLock[] regionLocks = new ReadWriteLock[REGION_LOCK_STRIPES];
+    private final RegionFileCache regions;
+
+    /**
+     * Creates a region storage in the folder
+     *
+     * @param folder
+     *         The folder to store the region files in
+     * @param maxOpenRegions
+     *         The maximum number of region files to keep open
+     */
+    public RegionChunkStorage(File folder, int maxOpenRegions) {
+        this.folder = folder;
+        for (int i = 0; i < regionLocks.length; i++) {
+            regionLocks[i] = new ReentrantReadWriteLock();
+        }
+        regions = new RegionFileCache(folder, maxOpenRegions);
+    }
+
+    @Override
+    public ByteBuf read(int x, int z) throws IOException {
+        Lock lock = regionLock(x >> 5, z >> 5).readLock();
+        lock.lock();
+        try {
+            RegionFile region = regions.get(x >> 5, z >> 5, false);
+            if (region == null) {
+                return null;
+            }
+            try {
+                return region.read(x, z);
+            } finally {
+                region.release();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void write(int x, int z, ByteBuf data, int hash) throws IOException {
+        Lock lock = regionLock(x >> 5, z >> 5).writeLock();
+        lock.lock();
+        try {
+            RegionFile region = regions.get(x >> 5, z >> 5, true);
+            try {
+                region.write(x, z, data, hash);
+            } finally {
+                region.release();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        regions.flushHeaders();
+    }
+
+    @Override
+    public void load(ChunkIndex index) throws IOException {
+        File[] files = folder.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            Matcher matcher = REGION_NAME.matcher(file.getName());
+            if (!matcher.matches()) {
+                continue;
+            }
+            int rx = Integer.parseInt(matcher.group(1));
+            int rz = Integer.parseInt(matcher.group(2));
+            RegionFile.readIndex(file, rx, rz, index);
+        }
+    }
+
+    @Override
+    public void close() {
+        regions.close();
+    }
+
+    // Returns the lock guarding the region file at the region position
+    private ReadWriteLock regionLock(int rx, int rz) {
+        int hash = rx * 31 + rz;
+        hash ^= (hash >>> 16);
+        return regionLocks[hash & (REGION_LOCK_STRIPES - 1)];
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright 2014 Matthew Collins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.thinkofdeath.thinkcraft.bukkit.world;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+
+/**
+ * An open ThinkMap region file. The location header is kept in
+ * memory and each chunk is read with a single positional read into
+ * a pooled buffer.
+ * <p>
+ * Sectors freed by a write aren't reused until the header that
+ * stops pointing at them has been written, so a crash can't leave
+ * the header on disk pointing into another chunk's data.
+ * <p>
+ * Instances are reference counted by {@link RegionFileCache} and
+ * must be released once the caller is done with them.
+ */
+public class RegionFile {
+
+    public static final int SECTOR_SIZE = 4096;
+    // Size + location followed by a sector of content hashes
+    public static final int HEADER_SECTORS = 3;
+    public static final int CHUNK_COUNT = 32 * 32;
+    // Content hashes of the stored chunks are kept in the spare
+    // header sector
+    private static final int HASH_OFFSET = SECTOR_SIZE * 2;
+
+    private final File file;
+    private final RandomAccessFile region;
+    private final FileChannel channel;
+    private final int[] offsets = new int[CHUNK_COUNT];
+    private final int[] sizes = new int[CHUNK_COUNT];
+    private final int[] hashes = new int[CHUNK_COUNT];
+    // Set bits mark sectors that are in use
+    private final BitSet usedSectors = new BitSet();
+    // Sectors freed since the header was last written, they stay
+    // marked as used until then
+    private final BitSet pendingFree = new BitSet();
+    private boolean headerDirty;
+
+    // The cache holds one reference until the file is evicted
+    private int references = 1;
+    private boolean evicted;
+
+    RegionFile(File file) throws IOException {
+        this.file = file;
+        region = new RandomAccessFile(file, "rw");
+        channel = region.getChannel();
+        if (channel.size() < SECTOR_SIZE * HEADER_SECTORS) {
+            // Init header
+            channel.write(ByteBuffer.wrap(new byte[]{0}), SECTOR_SIZE * HEADER_SECTORS);
+        }
+        ByteBuffer header = ByteBuffer.allocate(SECTOR_SIZE * HEADER_SECTORS);
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0) {
+                break;
+            }
+        }
+        usedSectors.set(0, HEADER_SECTORS);
+        for (int i = 0; i < CHUNK_COUNT; i++) {
+            offsets[i] = header.getInt(i * 8);
+            sizes[i] = header.getInt(i * 8 + 4);
+            hashes[i] = header.getInt(HASH_OFFSET + i * 4);
+            if (offsets[i] != 0) {
+                usedSectors.set(offsets[i], offsets[i] + sectorCount(sizes[i]));
+            }
+        }
+    }
+
+    /**
+     * Adds the chunks stored in the region file to the index, reading
+     * the header without opening the file for writing
+     *
+     * @param file
+     *         The region file to read
+     * @param rx
+     *         The x position of the region
+     * @param rz
+     *         The z position of the region
+     * @param index
+     *         The index to add to
+     * @throws IOException
+     *         If the header couldn't be read
+     */
+    public static void readIndex(File file, int rx, int rz, ChunkIndex index) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            byte[] data = new byte[SECTOR_SIZE * HEADER_SECTORS];
+            int length = (int) Math.min(data.length, in.length());
+            in.readFully(data, 0, length);
+            ByteBuffer header = ByteBuffer.wrap(data);
+            for (int i = 0; i < CHUNK_COUNT; i++) {
+                if (header.getInt(i * 8) != 0) {
+                    index.add((rx << 5) | (i & 0x1F), (rz << 5) | (i >> 5), header.getInt(HASH_OFFSET + i * 4));
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the stored data for the chunk. The caller must release
+     * the returned buffer
+     *
+     * @param x
+     *         The x position of the chunk
+     * @param z
+     *         The z position of the chunk
+     * @return The stored data or null if the chunk doesn't exist
+     * @throws IOException
+     *         If the read fails
+     */
+    public synchronized ByteBuf read(int x, int z) throws IOException {
+        int id = chunkId(x, z);
+        int offset = offsets[id];
+        if (offset == 0) { // No entry
+            return null;
+        }
+        int size = sizes[id];
+        long position = (long) offset * SECTOR_SIZE;
+        ByteBuf out = PooledByteBufAllocator.DEFAULT.heapBuffer(size);
+        try {
+            ByteBuffer data = ByteBuffer.wrap(out.array(), out.arrayOffset(), size);
+            while (data.hasRemaining()) {
+                int count = channel.read(data, position);
+                if (count < 0) {
+                    throw new IOException("Unexpected end of " + file.getName());
+                }
+                position += count;
+            }
+            out.writerIndex(size);
+        } catch (IOException | RuntimeException e) {
+            out.release();
+            throw e;
+        }
+        return out;
+    }
+
+    /**
+     * Writes the data into the region file. The caller must hold
+     * the write lock for this region and call {@link #flushHeader()}
+     * once it has finished writing
+     *
+     * @param x
+     *         The x position of the chunk
+     * @param z
+     *         The z position of the chunk
+     * @param data
+     *         The data to store
+     * @param hash
+     *         The content hash of the chunk, 0 if unknown
+     * @throws IOException
+     *         If the write fails
+     */
+    public synchronized void write(int x, int z, ByteBuf data, int hash) throws IOException {
+        int id = chunkId(x, z);
+        int offset = offsets[id];
+        int size = data.readableBytes();
+        if (offset == 0 || sectorCount(size) > sectorCount(sizes[id])) {
+            // Free the old space and search for a new location
+            if (offset != 0) {
+                pendingFree.set(offset, offset + sectorCount(sizes[id]));
+            }
+            offset = findSpace(sectorCount(size));
+        } else {
+            // Reuse the old space, returning any sectors no longer needed
+            pendingFree.set(offset + sectorCount(size), offset + sectorCount(sizes[id]));
+        }
+        usedSectors.set(offset, offset + sectorCount(size));
+        writeFully(data.nioBuffer(), (long) offset * SECTOR_SIZE);
+
+        offsets[id] = offset;
+        sizes[id] = size;
+        hashes[id] = hash;
+        headerDirty = true;
+    }
+
+    /**
+     * Writes the in-memory header out to the file if it has changed
+     * since the last flush
+     *
+     * @throws IOException
+     *         If the write fails
+     */
+    public synchronized void flushHeader() throws IOException {
+        if (!headerDirty) {
+            return;
+        }
+        ByteBuffer header = ByteBuffer.allocate(SECTOR_SIZE * HEADER_SECTORS);
+        for (int i = 0; i < CHUNK_COUNT; i++) {
+            header.putInt(i * 8, offsets[i]);
+            header.putInt(i * 8 + 4, sizes[i]);
+            header.putInt(HASH_OFFSET + i * 4, hashes[i]);
+        }
+        writeFully(header, 0);
+        headerDirty = false;
+        // Nothing on disk points at the freed sectors anymore
+        usedSectors.andNot(pendingFree);
+        pendingFree.clear();
+    }
+
+    // Finds the first run of free sectors large enough to hold
+    // the requested number of sectors
+    private int findSpace(int sectors) {
+        int start = usedSectors.nextClearBit(HEADER_SECTORS);
+        while (true) {
+            int end = usedSectors.nextSetBit(start);
+            if (end == -1 || end - start >= sectors) {
+                // Either a large enough gap or the end of the file
+                return start;
+            }
+            start = usedSectors.nextClearBit(end);
+        }
+    }
+
+    private static int sectorCount(int size) {
+        return (size / SECTOR_SIZE) + 1;
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Returns the file this region is stored in
+     *
+     * @return The region's file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    synchronized void retain() {
+        references++;
+    }
+
+    /**
+     * Releases a reference to this region, closing it if it has
+     * been evicted from the cache and this was the last reference
+     */
+    public synchronized void release() {
+        references--;
+        if (references == 0 && evicted) {
+            close();
+        }
+    }
+
+    synchronized void evict() {
+        evicted = true;
+        release();
+    }
+
+    private void close() {
+        try {
+            try {
+                flushHeader();
+            } finally {
+                region.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static int chunkId(int x, int z) {
+        return (x & 0x1F) | ((z & 0x1F) << 5);
+    }
+}
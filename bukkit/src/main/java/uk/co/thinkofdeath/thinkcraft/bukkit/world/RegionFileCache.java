@@ -0,0 +1,153 @@
+/*
+ * Copyright 2014 Matthew Collins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.thinkofdeath.thinkcraft.bukkit.world;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Keeps a bounded number of region files open, evicting the
+ * least recently used one when the limit is reached
+ */
+public class RegionFileCache {
+
+    private final File worldFolder;
+    private final int maxOpenRegions;
+    private final LinkedHashMap<Long, RegionFile> regions = new LinkedHashMap<>(16, 0.75f, true);
+    // Guarded by regions
+    private boolean closed;
+
+    public RegionFileCache(File worldFolder, int maxOpenRegions) {
+        this.worldFolder = worldFolder;
+        this.maxOpenRegions = Math.max(1, maxOpenRegions);
+    }
+
+    /**
+     * Returns the region file for the region position, the returned
+     * region must be released once the caller is done with it.
+     * The caller should hold the lock for the region before calling
+     * this so the header can't go stale under it
+     *
+     * @param rx
+     *         The x position of the region
+     * @param rz
+     *         The z position of the region
+     * @param create
+     *         Whether the region file should be created if it doesn't
+     *         exist
+     * @return The region file or null if it doesn't exist and create
+     * was false
+     * @throws IOException
+     *         If the region file fails to open or the cache has been
+     *         closed
+     */
+    public RegionFile get(int rx, int rz, boolean create) throws IOException {
+        long key = regionKey(rx, rz);
+        RegionFile evicted = null;
+        RegionFile region;
+        synchronized (regions) {
+            if (closed) {
+                throw new IOException("Region files have been closed");
+            }
+            region = regions.get(key);
+            if (region == null) {
+                File file = regionFile(rx, rz);
+                if (!file.exists()) {
+                    if (!create) {
+                        return null;
+                    }
+                    if (!worldFolder.exists() && !worldFolder.mkdirs()) {
+                        throw new IOException("Failed to create world folder");
+                    }
+                }
+                region = new RegionFile(file);
+                regions.put(key, region);
+                if (regions.size() > maxOpenRegions) {
+                    Iterator<RegionFile> it = regions.values().iterator();
+                    evicted = it.next();
+                    it.remove();
+                }
+            }
+            region.retain();
+        }
+        if (evicted != null) {
+            evicted.evict();
+        }
+        return region;
+    }
+
+    /**
+     * Returns the file for the region position
+     *
+     * @param rx
+     *         The x position of the region
+     * @param rz
+     *         The z position of the region
+     * @return The region's file
+     */
+    public File regionFile(int rx, int rz) {
+        return new File(worldFolder, String.format("region_%d-%d.dat", rx, rz));
+    }
+
+    /**
+     * Writes out the headers of the open region files
+     *
+     * @throws IOException
+     *         If a header couldn't be written
+     */
+    public void flushHeaders() throws IOException {
+        ArrayList<RegionFile> open;
+        synchronized (regions) {
+            open = new ArrayList<>(regions.values());
+            for (RegionFile region : open) {
+                region.retain();
+            }
+        }
+        try {
+            for (RegionFile region : open) {
+                region.flushHeader();
+            }
+        } finally {
+            for (RegionFile region : open) {
+                region.release();
+            }
+        }
+    }
+
+    /**
+     * Closes all open region files once they are no longer in use,
+     * any later attempt to open a region fails
+     */
+    public void close() {
+        ArrayList<RegionFile> open;
+        synchronized (regions) {
+            closed = true;
+            open = new ArrayList<>(regions.values());
+            regions.clear();
+        }
+        for (RegionFile region : open) {
+            region.evict();
+        }
+    }
+
+    private static long regionKey(int rx, int rz) {
+        return ((long) rx << 32) | (rz & 0xFFFFFFFFL);
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2014 Matthew Collins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.thinkofdeath.thinkcraft.bukkit.world;
+
+import org.bukkit.ChunkSnapshot;
+
+/**
+ * Chunk data backed by a Bukkit chunk snapshot
+ */
+public class SnapshotChunkData implements ChunkData {
+
+    private final ChunkSnapshot snapshot;
+
+    public SnapshotChunkData(ChunkSnapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    @Override
+    public int getX() {
+        return snapshot.getX();
+    }
+
+    @Override
+    public int getZ() {
+        return snapshot.getZ();
+    }
+
+    @Override
+    public boolean isSectionEmpty(int section) {
+        return snapshot.isSectionEmpty(section);
+    }
+
+    @Override
+    public int getBlockTypeId(int x, int y, int z) {
+        return snapshot.getBlockTypeId(x, y, z);
+    }
+
+    @Override
+    public int getBlockData(int x, int y, int z) {
+        return snapshot.getBlockData(x, y, z);
+    }
+
+    @Override
+    public int getBlockEmittedLight(int x, int y, int z) {
+        return snapshot.getBlockEmittedLight(x, y, z);
+    }
+
+    @Override
+    public int getBlockSkyLight(int x, int y, int z) {
+        return snapshot.getBlockSkyLight(x, y, z);
+    }
+
+    @Override
+    public int getBiomeId(int x, int z) {
+        return ThinkBiome.bukkitToId(snapshot.getBiome(x, z));
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright 2014 Matthew Collins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.thinkofdeath.thinkcraft.bukkit.world;
+
+import org.bukkit.Location;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Takes snapshots of live chunks on the main thread, limited to a
+ * time budget per tick. Requests for the same chunk are merged and
+ * the most requested chunks (then those nearest to spawn) are taken
+ * first, anything that doesn't fit in a tick is left for the next
+ * one. Requests whose callbacks no longer want the snapshot (e.g.
+ * they timed out and used the stored copy) are dropped without
+ * taking it.
+ */
+public class SnapshotScheduler implements Runnable {
+
+    private final ChunkManager chunkManager;
+    private final long budgetNanos;
+    private final BukkitTask task;
+
+    // Guarded by pending
+    private final HashMap<Long, Request> pending = new HashMap<>();
+    private boolean closed;
+
+    private final AtomicLong snapshots = new AtomicLong();
+    private final AtomicLong rolledOver = new AtomicLong();
+    private volatile long lastTickNanos;
+    private volatile long averageTickNanos;
+
+    /**
+     * Creates and starts a scheduler for the chunk manager's world
+     *
+     * @param chunkManager
+     *         The chunk manager to take the snapshots for
+     * @param budget
+     *         The time in milliseconds that may be spent per tick
+     */
+    public SnapshotScheduler(ChunkManager chunkManager, double budget) {
+        this.chunkManager = chunkManager;
+        budgetNanos = (long) (budget * 1000000);
+        task = chunkManager.getPlugin().getServer().getScheduler()
+                .runTaskTimer(chunkManager.getPlugin(), this, 1, 1);
+    }
+
+    /**
+     * Requests a snapshot of the chunk. The callback is called on
+     * the main thread with the snapshot or null if the chunk isn't
+     * loaded anymore
+     *
+     * @param x
+     *         The x position of the chunk
+     * @param z
+     *         The z position of the chunk
+     * @param callback
+     *         The callback to pass the snapshot to
+     * @return Whether the request was accepted, false if the scheduler
+     * has been closed
+     */
+    public boolean request(int x, int z, Callback callback) {
+        long key = ChunkManager.chunkKey(x, z);
+        synchronized (pending) {
+            if (closed) {
+                return false;
+            }
+            Request request = pending.get(key);
+            if (request == null) {
+                request = new Request(x, z);
+                pending.put(key, request);
+            }
+            request.callbacks.add(callback);
+        }
+        return true;
+    }
+
+    /**
+     * Counts another request waiting on the chunk's snapshot without
+     * adding a callback, used for requests that joined one already
+     * made. Does nothing if the chunk isn't waiting for a snapshot
+     *
+     * @param x
+     *         The x position of the chunk
+     * @param z
+     *         The z position of the chunk
+     */
+    public void addWaiter(int x, int z) {
+        synchronized (pending) {
+            Request request = pending.get(ChunkManager.chunkKey(x, z));
+            if (request != null) {
+                request.waiters++;
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        long start = System.nanoTime();
+        List<Request> requests;
+        synchronized (pending) {
+            if (pending.isEmpty()) {
+                lastTickNanos = 0;
+                return;
+            }
+            requests = new ArrayList<>(pending.size());
+            for (Iterator<Request> it = pending.values().iterator(); it.hasNext(); ) {
+                Request request = it.next();
+                if (!request.isWanted()) {
+                    it.remove();
+                    continue;
+                }
+                request.count = request.callbacks.size() + request.waiters;
+                requests.add(request);
+            }
+        }
+        Location spawn = chunkManager.getWorld().getSpawnLocation();
+        final int spawnX = spawn.getBlockX() >> 4;
+        final int spawnZ = spawn.getBlockZ() >> 4;
+        Collections.sort(requests, new Comparator<Request>() {
+            @Override
+            public int compare(Request o1, Request o2) {
+                if (o1.count != o2.count) {
+                    return o2.count - o1.count;
+                }
+                return Long.compare(o1.distance(spawnX, spawnZ), o2.distance(spawnX, spawnZ));
+            }
+        });
+
+        int taken = 0;
+        for (Request request : requests) {
+            // Always take at least one so that a tiny budget can't
+            // stall requests forever
+            if (taken > 0 && System.nanoTime() - start >= budgetNanos) {
+                rolledOver.addAndGet(requests.size() - taken);
+                break;
+            }
+            List<Callback> callbacks;
+            synchronized (pending) {
+                pending.remove(ChunkManager.chunkKey(request.x, request.z));
+                callbacks = request.callbacks;
+                // May have timed out while earlier chunks were taken
+                if (!request.isWanted()) {
+                    continue;
+                }
+            }
+            ChunkData snapshot = chunkManager.takeSnapshot(request.x, request.z);
+            for (Callback callback : callbacks) {
+                try {
+                    callback.snapshotReady(snapshot);
+                } catch (RuntimeException e) {
+                    chunkManager.getPlugin().getLogger().log(Level.WARNING, "Failed to handle chunk snapshot", e);
+                }
+            }
+            taken++;
+        }
+        snapshots.addAndGet(taken);
+
+        long time = System.nanoTime() - start;
+        lastTickNanos = time;
+        averageTickNanos = averageTickNanos == 0 ? time : (averageTickNanos * 19 + time) / 20;
+    }
+
+    /**
+     * Stops the scheduler. Requests still waiting are given a null
+     * snapshot
+     */
+    public void close() {
+        task.cancel();
+        List<Request> requests;
+        synchronized (pending) {
+            closed = true;
+            requests = new ArrayList<>(pending.values());
+            pending.clear();
+        }
+        for (Request request : requests) {
+            for (Callback callback : request.callbacks) {
+                callback.snapshotReady(null);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of chunks waiting for a snapshot
+     *
+     * @return The number of waiting chunks
+     */
+    public int getPendingCount() {
+        synchronized (pending) {
+            return pending.size();
+        }
+    }
+
+    /**
+     * Returns the number of snapshots taken since start up
+     *
+     * @return The number of snapshots
+     */
+    public long getSnapshotCount() {
+        return snapshots.get();
+    }
+
+    /**
+     * Returns the number of times a chunk was left for a later tick
+     * because the budget ran out
+     *
+     * @return The number of roll overs
+     */
+    public long getRolledOverCount() {
+        return rolledOver.get();
+    }
+
+    /**
+     * Returns the time spent taking snapshots in the last tick
+     *
+     * @return The time in milliseconds
+     */
+    public double getLastTickTime() {
+        return lastTickNanos / 1000000.0;
+    }
+
+    /**
+     * Returns the average time spent taking snapshots per busy tick
+     *
+     * @return The time in milliseconds
+     */
+    public double getAverageTickTime() {
+        return averageTickNanos / 1000000.0;
+    }
+
+    /**
+     * Receives snapshots taken by the scheduler
+     */
+    public static interface Callback {
+
+        /**
+         * Called on the main thread once the snapshot has been taken
+         *
+         * @param snapshot
+         *         The snapshot or null if the chunk isn't loaded
+         */
+        void snapshotReady(ChunkData snapshot);
+
+        /**
+         * Returns whether the snapshot is still needed, checked
+         * before it is taken
+         *
+         * @return Whether to take the snapshot
+         */
+        boolean isWanted();
+    }
+
+    private static class Request {
+        private final int x;
+        private final int z;
+        // Guarded by pending
+        private final List<Callback> callbacks = new ArrayList<>();
+        // Guarded by pending, requests that joined another one
+        private int waiters;
+
+        // Guarded by pending
+        private boolean isWanted() {
+            for (Callback callback : callbacks) {
+                if (callback.isWanted()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        // The number of requests when the tick started
+        private int count;
+
+        private Request(int x, int z) {
+            this.x = x;
+            this.z = z;
+        }
+
+        private long distance(int spawnX, int spawnZ) {
+            long dx = x - spawnX;
+            long dz = z - spawnZ;
+            return dx * dx + dz * dz;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2014 Matthew Collins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.thinkofdeath.thinkcraft.bukkit.world;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Chunk data decoded from a stored record, see {@link ChunkEncoder}
+ * for the format
+ */
+public class StoredChunkData implements ChunkData {
+
+    private static final int SECTION_SIZE = 16 * 16 * 16;
+
+    private final int x;
+    private final int z;
+    // Block states (id << 4 | data) per section, null when empty
+    private final short[][] states = new short[16][];
+    // Packed two per byte, null when the section has none or is
+    // fully lit
+    private final byte[][] blockLight = new byte[16][];
+    private final byte[][] skyLight = new byte[16][];
+    private final byte[] biomes = new byte[16 * 16];
+
+    /**
+     * Decodes the chunk from a stored record
+     *
+     * @param x
+     *         The x position of the chunk
+     * @param z
+     *         The z position of the chunk
+     * @param record
+     *         The stored record, left unchanged
+     * @throws IOException
+     *         If the record couldn't be decoded
+     */
+    public StoredChunkData(int x, int z, ByteBuf record) throws IOException {
+        this.x = x;
+        this.z = z;
+        ByteBuf data = record.duplicate();
+        ChunkRecord.skipTable(data);
+        try (DataInputStream in = new DataInputStream(new GZIPInputStream(new ByteBufInputStream(data)))) {
+            if (in.readUnsignedByte() != 1) {
+                throw new IOException("Chunk " + x + "," + z + " doesn't exist");
+            }
+            int mask = in.readUnsignedShort();
+            for (int i = 0; i < 16; i++) {
+                if ((mask & (1 << i)) != 0) {
+                    readSection(i, in);
+                }
+            }
+            in.readFully(biomes);
+        }
+    }
+
+    private void readSection(int section, DataInputStream in) throws IOException {
+        short[] palette = new short[in.readUnsignedShort()];
+        for (int i = 0; i < palette.length; i++) {
+            palette[i] = in.readShort();
+        }
+        short[] blocks = states[section] = new short[SECTION_SIZE];
+        int bits = in.readUnsignedByte();
+        if (bits == 16) {
+            for (int i = 0; i < SECTION_SIZE; i++) {
+                blocks[i] = palette[in.readUnsignedShort()];
+            }
+        } else if (bits != 0) {
+            int perByte = 8 / bits;
+            int mask = (1 << bits) - 1;
+            for (int i = 0; i < SECTION_SIZE; i += perByte) {
+                int b = in.readUnsignedByte();
+                for (int j = 0; j < perByte; j++) {
+                    blocks[i + j] = palette[(b >> (j * bits)) & mask];
+                }
+            }
+        } else if (palette.length > 0) {
+            Arrays.fill(blocks, palette[0]);
+        }
+
+        int flags = in.readUnsignedByte();
+        if ((flags & ChunkEncoder.FLAG_NO_BLOCK_LIGHT) == 0) {
+            in.readFully(blockLight[section] = new byte[SECTION_SIZE / 2]);
+        }
+        if ((flags & ChunkEncoder.FLAG_FULL_SKY_LIGHT) == 0) {
+            in.readFully(skyLight[section] = new byte[SECTION_SIZE / 2]);
+        }
+    }
+
+    private static int index(int x, int y, int z) {
+        return ((y & 0xF) << 8) | (z << 4) | x;
+    }
+
+    private static int nibble(byte[] light, int index) {
+        return (light[index >> 1] >> ((index & 1) << 2)) & 0xF;
+    }
+
+    @Override
+    public int getX() {
+        return x;
+    }
+
+    @Override
+    public int getZ() {
+        return z;
+    }
+
+    @Override
+    public boolean isSectionEmpty(int section) {
+        return states[section] == null;
+    }
+
+    @Override
+    public int getBlockTypeId(int x, int y, int z) {
+        short[] blocks = states[y >> 4];
+        return blocks != null ? (blocks[index(x, y, z)] & 0xFFFF) >> 4 : 0;
+    }
+
+    @Override
+    public int getBlockData(int x, int y, int z) {
+        short[] blocks = states[y >> 4];
+        return blocks != null ? blocks[index(x, y, z)] & 0xF : 0;
+    }
+
+    @Override
+    public int getBlockEmittedLight(int x, int y, int z) {
+        byte[] light = blockLight[y >> 4];
+        return light != null ? nibble(light, index(x, y, z)) : 0;
+    }
+
+    @Override
+    public int getBlockSkyLight(int x, int y, int z) {
+        byte[] light = skyLight[y >> 4];
+        return light != null ? nibble(light, index(x, y, z)) : 15;
+    }
+
+    @Override
+    public int getBiomeId(int x, int z) {
+        return biomes[(z << 4) | x] & 0xFF;
+    }
+}
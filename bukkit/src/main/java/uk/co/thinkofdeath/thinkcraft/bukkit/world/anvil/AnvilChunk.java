@@ -0,0 +1,172 @@
+/*
+ * Copyright 2014 Matthew Collins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.thinkofdeath.thinkcraft.bukkit.world.anvil;
+
+import uk.co.thinkofdeath.thinkcraft.bukkit.world.ChunkData;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Chunk data read from a vanilla Anvil chunk's NBT
+ */
+public class AnvilChunk implements ChunkData {
+
+    private final int x;
+    private final int z;
+    private final byte[][] blocks = new byte[16][];
+    private final byte[][] add = new byte[16][];
+    private final byte[][] data = new byte[16][];
+    private final byte[][] blockLight = new byte[16][];
+    private final byte[][] skyLight = new byte[16][];
+    private final boolean[] empty = new boolean[16];
+    private final byte[] biomes;
+
+    /**
+     * Loads the chunk from its root NBT compound
+     *
+     * @param root
+     *         The chunk's root compound
+     * @throws IOException
+     *         If the compound isn't a valid chunk
+     */
+    @SuppressWarnings("unchecked")
+    public AnvilChunk(Map<String, Object> root) throws IOException {
+        try {
+            Map<String, Object> level = (Map<String, Object>) root.get("Level");
+            if (level == null) {
+                throw new IOException("Missing level compound");
+            }
+            x = ((Number) level.get("xPos")).intValue();
+            z = ((Number) level.get("zPos")).intValue();
+            List<Object> sections = (List<Object>) level.get("Sections");
+            if (sections != null) {
+                for (Object o : sections) {
+                    Map<String, Object> section = (Map<String, Object>) o;
+                    int y = ((Number) section.get("Y")).intValue();
+                    if (y < 0 || y >= 16) {
+                        continue;
+                    }
+                    blocks[y] = (byte[]) section.get("Blocks");
+                    add[y] = (byte[]) section.get("Add");
+                    data[y] = (byte[]) section.get("Data");
+                    blockLight[y] = (byte[]) section.get("BlockLight");
+                    skyLight[y] = (byte[]) section.get("SkyLight");
+                }
+            }
+            biomes = (byte[]) level.get("Biomes");
+        } catch (ClassCastException | NullPointerException e) {
+            throw new IOException("Invalid chunk", e);
+        }
+        for (int i = 0; i < 16; i++) {
+            empty[i] = isAir(blocks[i]) && isAir(add[i]);
+            if (!empty[i] && (blocks[i].length != 4096 || !validNibbles(add[i], true)
+                    || !validNibbles(data[i], false) || !validNibbles(blockLight[i], true)
+                    || !validNibbles(skyLight[i], true))) {
+                throw new IOException("Invalid section " + i);
+            }
+        }
+    }
+
+    private static boolean isAir(byte[] blocks) {
+        if (blocks == null) {
+            return true;
+        }
+        for (byte b : blocks) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean validNibbles(byte[] nibbles, boolean optional) {
+        return nibbles == null ? optional : nibbles.length == 2048;
+    }
+
+    @Override
+    public int getX() {
+        return x;
+    }
+
+    @Override
+    public int getZ() {
+        return z;
+    }
+
+    @Override
+    public boolean isSectionEmpty(int section) {
+        return empty[section];
+    }
+
+    @Override
+    public int getBlockTypeId(int x, int y, int z) {
+        int section = y >> 4;
+        if (empty[section]) {
+            return 0;
+        }
+        int index = index(x, y, z);
+        int id = blocks[section][index] & 0xFF;
+        if (add[section] != null) {
+            id |= nibble(add[section], index) << 8;
+        }
+        return id;
+    }
+
+    @Override
+    public int getBlockData(int x, int y, int z) {
+        int section = y >> 4;
+        if (empty[section]) {
+            return 0;
+        }
+        return nibble(data[section], index(x, y, z));
+    }
+
+    @Override
+    public int getBlockEmittedLight(int x, int y, int z) {
+        byte[] light = blockLight[y >> 4];
+        return light == null ? 0 : nibble(light, index(x, y, z));
+    }
+
+    @Override
+    public int getBlockSkyLight(int x, int y, int z) {
+        int section = y >> 4;
+        if (blocks[section] == null) {
+            // Missing sections are open to the sky
+            return 15;
+        }
+        byte[] light = skyLight[section];
+        return light == null ? 0 : nibble(light, index(x, y, z));
+    }
+
+    @Override
+    public int getBiomeId(int x, int z) {
+        if (biomes == null || biomes.length != 256) {
+            return 255;
+        }
+        return biomes[(z << 4) | x] & 0xFF;
+    }
+
+    private static int index(int x, int y, int z) {
+        return ((y & 0xF) << 8) | (z << 4) | x;
+    }
+
+    private static int nibble(byte[] data, int index) {
+        return (data[index >> 1] >> ((index & 1) << 2)) & 0xF;
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2014 Matthew Collins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.thinkofdeath.thinkcraft.bukkit.world.anvil;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Read only access to a vanilla Anvil (.mca) region file
+ */
+public class AnvilRegion implements Closeable {
+
+    private static final int SECTOR_SIZE = 4096;
+    private static final int COMPRESSION_GZIP = 1;
+    private static final int COMPRESSION_ZLIB = 2;
+
+    private final RandomAccessFile file;
+    private final int[] locations = new int[1024];
+    private final int[] timestamps = new int[1024];
+
+    /**
+     * Opens the region file and reads its header
+     *
+     * @param file
+     *         The region file
+     * @throws IOException
+     *         If the file couldn't be read
+     */
+    public AnvilRegion(File file) throws IOException {
+        this.file = new RandomAccessFile(file, "r");
+        // Files smaller than the header don't contain any chunks
+        if (this.file.length() >= SECTOR_SIZE * 2) {
+            for (int i = 0; i < locations.length; i++) {
+                locations[i] = this.file.readInt();
+            }
+            for (int i = 0; i < timestamps.length; i++) {
+                timestamps[i] = this.file.readInt();
+            }
+        }
+    }
+
+    /**
+     * Returns whether the region contains the chunk
+     *
+     * @param x
+     *         The x position of the chunk
+     * @param z
+     *         The z position of the chunk
+     * @return Whether the chunk exists
+     */
+    public boolean hasChunk(int x, int z) {
+        return locations[index(x, z)] != 0;
+    }
+
+    /**
+     * Returns the last time the chunk was saved
+     *
+     * @param x
+     *         The x position of the chunk
+     * @param z
+     *         The z position of the chunk
+     * @return The time in milliseconds since the epoch
+     */
+    public long getTimestamp(int x, int z) {
+        return (timestamps[index(x, z)] & 0xFFFFFFFFL) * 1000L;
+    }
+
+    /**
+     * Reads the chunk's NBT data
+     *
+     * @param x
+     *         The x position of the chunk
+     * @param z
+     *         The z position of the chunk
+     * @return The chunk's root compound or null if it doesn't exist
+     * @throws IOException
+     *         If the chunk couldn't be read
+     */
+    public Map<String, Object> readChunk(int x, int z) throws IOException {
+        int location = locations[index(x, z)];
+        if (location == 0) {
+            return null;
+        }
+        long offset = (long) (location >>> 8) * SECTOR_SIZE;
+        int sectors = location & 0xFF;
+        if (offset + SECTOR_SIZE > file.length()) {
+            throw new IOException("Chunk is outside of the file");
+        }
+        file.seek(offset);
+        int length = file.readInt();
+        if (length <= 1 || length > sectors * SECTOR_SIZE) {
+            throw new IOException("Invalid chunk length " + length);
+        }
+        int compression = file.readByte();
+        byte[] data = new byte[length - 1];
+        file.readFully(data);
+
+        InputStream in = new ByteArrayInputStream(data);
+        if (compression == COMPRESSION_GZIP) {
+            in = new GZIPInputStream(in);
+        } else if (compression == COMPRESSION_ZLIB) {
+            in = new InflaterInputStream(in);
+        } else {
+            throw new IOException("Unknown compression type " + compression);
+        }
+        try (DataInputStream dataIn = new DataInputStream(new BufferedInputStream(in))) {
+            return NBTReader.read(dataIn);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    private static int index(int x, int z) {
+        return (x & 31) | ((z & 31) << 5);
+    }
+}
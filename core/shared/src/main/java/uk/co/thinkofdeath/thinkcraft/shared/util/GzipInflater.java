@@ -0,0 +1,318 @@
+/*
+ * Copyright 2014 Matthew Collins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.thinkofdeath.thinkcraft.shared.util;
+
+import uk.co.thinkofdeath.thinkcraft.shared.platform.Platform;
+import uk.co.thinkofdeath.thinkcraft.shared.platform.buffers.UByteBuffer;
+
+/**
+ * Decompresses gzip data without relying on java.util.zip so that it
+ * works in the web workers. The whole stream must be available up
+ * front and the size in its trailer is trusted for the output
+ */
+public class GzipInflater {
+
+    private static final int FLAG_HCRC = 0x02;
+    private static final int FLAG_EXTRA = 0x04;
+    private static final int FLAG_NAME = 0x08;
+    private static final int FLAG_COMMENT = 0x10;
+
+    private static final int[] LENGTH_BASE = {
+            3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31,
+            35, 43, 51, 59, 67, 83, 99, 115, 131, 163, 195, 227, 258
+    };
+    private static final int[] LENGTH_EXTRA = {
+            0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2,
+            3, 3, 3, 3, 4, 4, 4, 4, 5, 5, 5, 5, 0
+    };
+    private static final int[] DISTANCE_BASE = {
+            1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65, 97, 129, 193,
+            257, 385, 513, 769, 1025, 1537, 2049, 3073, 4097, 6145, 8193, 12289, 16385, 24577
+    };
+    private static final int[] DISTANCE_EXTRA = {
+            0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6,
+            7, 7, 8, 8, 9, 9, 10, 10, 11, 11, 12, 12, 13, 13
+    };
+    private static final int[] CODE_LENGTH_ORDER = {
+            16, 17, 18, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1, 15
+    };
+
+    private static Huffman fixedLengths;
+    private static Huffman fixedDistances;
+
+    private final UByteBuffer in;
+    private final int end;
+    private int position;
+    private int bits;
+    private int bitCount;
+
+    private final UByteBuffer out;
+    private int outPosition;
+
+    private GzipInflater(UByteBuffer in, int offset, int length, UByteBuffer out) {
+        this.in = in;
+        this.position = offset;
+        this.end = offset + length;
+        this.out = out;
+    }
+
+    /**
+     * Decompresses the gzip stream
+     *
+     * @param in
+     *         The buffer holding the stream
+     * @param offset
+     *         The offset of the stream in the buffer
+     * @param length
+     *         The length of the stream
+     * @return The decompressed data
+     * @throws IllegalArgumentException
+     *         If the stream isn't valid gzip
+     */
+    public static UByteBuffer inflate(UByteBuffer in, int offset, int length) {
+        if (length < 18 || in.get(offset) != 0x1F || in.get(offset + 1) != 0x8B || in.get(offset + 2) != 8) {
+            throw new IllegalArgumentException("Not a gzip stream");
+        }
+        int trailer = offset + length - 4;
+        int size = in.get(trailer)
+                | (in.get(trailer + 1) << 8)
+                | (in.get(trailer + 2) << 16)
+                | (in.get(trailer + 3) << 24);
+        if (size < 0) {
+            throw new IllegalArgumentException("Invalid size " + size);
+        }
+        GzipInflater inflater = new GzipInflater(in, offset, length - 8, Platform.alloc().ubyteBuffer(size));
+        inflater.skipHeader();
+        inflater.inflate();
+        if (inflater.outPosition != size) {
+            throw new IllegalArgumentException("Expected " + size + " bytes but got " + inflater.outPosition);
+        }
+        return inflater.out;
+    }
+
+    private void skipHeader() {
+        int flags = in.get(position + 3);
+        // Magic, method, flags, time, extra flags and os
+        position += 10;
+        if ((flags & FLAG_EXTRA) != 0) {
+            position += 2 + (readByte() | (readByte() << 8));
+        }
+        if ((flags & FLAG_NAME) != 0) {
+            skipString();
+        }
+        if ((flags & FLAG_COMMENT) != 0) {
+            skipString();
+        }
+        if ((flags & FLAG_HCRC) != 0) {
+            position += 2;
+        }
+    }
+
+    private void skipString() {
+        while (readByte() != 0) {
+            // Zero terminated
+        }
+    }
+
+    private void inflate() {
+        boolean last;
+        do {
+            last = readBits(1) == 1;
+            int type = readBits(2);
+            switch (type) {
+                case 0:
+                    copyStored();
+                    break;
+                case 1:
+                    if (fixedLengths == null) {
+                        createFixed();
+                    }
+                    inflateBlock(fixedLengths, fixedDistances);
+                    break;
+                case 2:
+                    inflateDynamic();
+                    break;
+                default:
+                    throw new IllegalArgumentException("Invalid block type");
+            }
+        } while (!last);
+    }
+
+    private void copyStored() {
+        // Stored blocks start on a byte boundary
+        bits = 0;
+        bitCount = 0;
+        int length = readByte() | (readByte() << 8);
+        int inverse = readByte() | (readByte() << 8);
+        if (length != (~inverse & 0xFFFF)) {
+            throw new IllegalArgumentException("Invalid stored block");
+        }
+        if (position + length > end) {
+            throw new IllegalArgumentException("Truncated stream");
+        }
+        for (int i = 0; i < length; i++) {
+            write(in.get(position++));
+        }
+    }
+
+    private void inflateDynamic() {
+        int lengthCount = readBits(5) + 257;
+        int distanceCount = readBits(5) + 1;
+        int codeLengthCount = readBits(4) + 4;
+
+        int[] lengths = new int[19];
+        for (int i = 0; i < codeLengthCount; i++) {
+            lengths[CODE_LENGTH_ORDER[i]] = readBits(3);
+        }
+        Huffman codeLengths = new Huffman(lengths, 0, 19);
+
+        lengths = new int[lengthCount + distanceCount];
+        int i = 0;
+        while (i < lengths.length) {
+            int symbol = decode(codeLengths);
+            if (symbol < 16) {
+                lengths[i++] = symbol;
+                continue;
+            }
+            int value = 0;
+            int repeat;
+            if (symbol == 16) {
+                if (i == 0) {
+                    throw new IllegalArgumentException("Nothing to repeat");
+                }
+                value = lengths[i - 1];
+                repeat = 3 + readBits(2);
+            } else if (symbol == 17) {
+                repeat = 3 + readBits(3);
+            } else {
+                repeat = 11 + readBits(7);
+            }
+            if (i + repeat > lengths.length) {
+                throw new IllegalArgumentException("Too many code lengths");
+            }
+            while (repeat-- > 0) {
+                lengths[i++] = value;
+            }
+        }
+        inflateBlock(new Huffman(lengths, 0, lengthCount), new Huffman(lengths, lengthCount, distanceCount));
+    }
+
+    private void inflateBlock(Huffman lengthCodes, Huffman distanceCodes) {
+        while (true) {
+            int symbol = decode(lengthCodes);
+            if (symbol < 256) {
+                write(symbol);
+            } else if (symbol == 256) {
+                return;
+            } else {
+                symbol -= 257;
+                if (symbol >= LENGTH_BASE.length) {
+                    throw new IllegalArgumentException("Invalid length code");
+                }
+                int length = LENGTH_BASE[symbol] + readBits(LENGTH_EXTRA[symbol]);
+                symbol = decode(distanceCodes);
+                if (symbol >= DISTANCE_BASE.length) {
+                    throw new IllegalArgumentException("Invalid distance code");
+                }
+                int distance = DISTANCE_BASE[symbol] + readBits(DISTANCE_EXTRA[symbol]);
+                if (distance > outPosition) {
+                    throw new IllegalArgumentException("Distance too far back");
+                }
+                for (int i = 0; i < length; i++) {
+                    write(out.get(outPosition - distance));
+                }
+            }
+        }
+    }
+
+    private static void createFixed() {
+        int[] lengths = new int[288 + 30];
+        for (int i = 0; i < 144; i++) lengths[i] = 8;
+        for (int i = 144; i < 256; i++) lengths[i] = 9;
+        for (int i = 256; i < 280; i++) lengths[i] = 7;
+        for (int i = 280; i < 288; i++) lengths[i] = 8;
+        for (int i = 288; i < lengths.length; i++) lengths[i] = 5;
+        fixedDistances = new Huffman(lengths, 288, 30);
+        fixedLengths = new Huffman(lengths, 0, 288);
+    }
+
+    // Codes are read a bit at a time, most significant bit first
+    private int decode(Huffman huffman) {
+        int code = 0;
+        int first = 0;
+        int index = 0;
+        for (int length = 1; length < 16; length++) {
+            code |= readBits(1);
+            int count = huffman.counts[length];
+            if (code - first < count) {
+                return huffman.symbols[index + code - first];
+            }
+            index += count;
+            first = (first + count) << 1;
+            code <<= 1;
+        }
+        throw new IllegalArgumentException("Invalid code");
+    }
+
+    private int readBits(int count) {
+        while (bitCount < count) {
+            bits |= readByte() << bitCount;
+            bitCount += 8;
+        }
+        int value = bits & ((1 << count) - 1);
+        bits >>>= count;
+        bitCount -= count;
+        return value;
+    }
+
+    private int readByte() {
+        if (position >= end) {
+            throw new IllegalArgumentException("Truncated stream");
+        }
+        return in.get(position++);
+    }
+
+    private void write(int value) {
+        if (outPosition >= out.size()) {
+            throw new IllegalArgumentException("More data than the trailer says");
+        }
+        out.set(outPosition++, value);
+    }
+
+    // Canonical huffman code, symbols sorted by code length
+    private static class Huffman {
+        private final int[] counts = new int[16];
+        private final int[] symbols;
+
+        private Huffman(int[] lengths, int offset, int count) {
+            symbols = new int[count];
+            for (int i = 0; i < count; i++) {
+                counts[lengths[offset + i]]++;
+            }
+            counts[0] = 0;
+            int[] offsets = new int[16];
+            for (int i = 1; i < 16; i++) {
+                offsets[i] = offsets[i - 1] + counts[i - 1];
+            }
+            for (int i = 0; i < count; i++) {
+                if (lengths[offset + i] != 0) {
+                    symbols[offsets[lengths[offset + i]]++] = i;
+                }
+            }
+        }
+    }
+}
@@ -24,6 +24,7 @@ public class ChunkLoadMessage extends WorkerMessage {
     private int x;
     private int z;
     private UByteBuffer data;
+    private boolean compressed;
 
     ChunkLoadMessage() {
     }
@@ -39,9 +40,27 @@ public class ChunkLoadMessage extends WorkerMessage {
      *         The data of the chunk
      */
     public ChunkLoadMessage(int x, int z, UByteBuffer data) {
+        this(x, z, data, false);
+    }
+
+    /**
+     * Creates a new chunk load message
+     *
+     * @param x
+     *         The x position of the chunk
+     * @param z
+     *         The z position of the chunk
+     * @param data
+     *         The data of the chunk
+     * @param compressed
+     *         Whether the data is gzip'd and needs inflating by the
+     *         worker
+     */
+    public ChunkLoadMessage(int x, int z, UByteBuffer data, boolean compressed) {
         this.x = x;
         this.z = z;
         this.data = data;
+        this.compressed = compressed;
     }
 
     /**
@@ -71,12 +90,22 @@ public class ChunkLoadMessage extends WorkerMessage {
         return data;
     }
 
+    /**
+     * Returns whether the data is gzip'd
+     *
+     * @return Whether the data is compressed
+     */
+    public boolean isCompressed() {
+        return compressed;
+    }
+
     @Override
     public void serialize(Serializer serializer) {
         super.serialize(serializer);
         serializer.putInt("x", x);
         serializer.putInt("z", z);
         serializer.putBuffer("data", data);
+        serializer.putBoolean("compressed", compressed);
     }
 
     @Override
@@ -85,6 +114,7 @@ public class ChunkLoadMessage extends WorkerMessage {
         x = serializer.getInt("x");
         z = serializer.getInt("z");
         data = (UByteBuffer) serializer.getBuffer("data");
+        compressed = serializer.getBoolean("compressed");
     }
 
     @Override
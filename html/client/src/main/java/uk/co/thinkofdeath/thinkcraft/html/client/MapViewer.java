@@ -37,6 +37,7 @@ import uk.co.thinkofdeath.thinkcraft.html.shared.JavascriptLib;
 import uk.co.thinkofdeath.thinkcraft.html.shared.serialize.JsObjectSerializer;
 import uk.co.thinkofdeath.thinkcraft.html.shared.settings.ClientSettings;
 import uk.co.thinkofdeath.thinkcraft.protocol.ServerPacketHandler;
+import uk.co.thinkofdeath.thinkcraft.protocol.packets.ChunkData;
 import uk.co.thinkofdeath.thinkcraft.protocol.packets.KeepAlive;
 import uk.co.thinkofdeath.thinkcraft.protocol.packets.ServerSettings;
 import uk.co.thinkofdeath.thinkcraft.protocol.packets.SpawnPosition;
@@ -71,6 +72,7 @@ public class MapViewer implements EntryPoint, EventListener, ServerPacketHandler
     private final MessageHandler messageHandler = new WorkerMessageHandler(this);
 
     private ClientSettings clientSettings;
+    private boolean streamChunks;
 
     private HashMap<String, Texture> textures = new HashMap<>();
     private VirtualTexture[] virtualTextures;
@@ -182,6 +184,7 @@ public class MapViewer implements EntryPoint, EventListener, ServerPacketHandler
     @Override
     public void handle(ServerSettings serverSettings) {
         clientSettings = ClientSettings.create(serverSettings.areOresHidden());
+        streamChunks = serverSettings.shouldStreamChunks();
 
         // Sync to workers
         getWorkerPool().sendMessage(new ClientSettingsMessage(clientSettings.areOresHidden()), true);
@@ -210,6 +213,12 @@ public class MapViewer implements EntryPoint, EventListener, ServerPacketHandler
         getWorld().setTimeOfDay(timeUpdate.getCurrentTime());
     }
 
+    @Override
+    public void handle(ChunkData chunkData) {
+        if (world == null) return;
+        world.receiveChunk(chunkData.getX(), chunkData.getZ(), chunkData.getData());
+    }
+
     private void handleSettings() {
         if (clientSettings.areOresHidden()) {
             Texture replacement = textures.get("stone");
@@ -278,6 +287,16 @@ public class MapViewer implements EntryPoint, EventListener, ServerPacketHandler
         return clientSettings;
     }
 
+    /**
+     * Returns whether the server pushes chunks over the connection
+     * instead of them being requested over http
+     *
+     * @return Whether chunks are streamed
+     */
+    public boolean shouldStreamChunks() {
+        return streamChunks;
+    }
+
     public VirtualTexture[] getVirtualTextures() {
         return virtualTextures;
     }
@@ -83,7 +83,7 @@ public class Connection implements EventListener {
 
     public void send(Packet<ClientPacketHandler> packet) {
         DataPacketStream packetStream = new DataPacketStream();
-        packetStream.writeInt(Packets.getClientPacketId(packet));
+        packetStream.writeUByte(Packets.getClientPacketId(packet));
         packet.write(packetStream);
         UByteBuffer data = packetStream.getBuffer().getArray();
         send(data);
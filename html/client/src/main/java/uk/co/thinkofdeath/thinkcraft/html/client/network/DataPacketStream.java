@@ -36,7 +36,8 @@ public class DataPacketStream implements PacketStream {
     }
 
     public DataPacketStream() {
-        buffer = new DynamicBuffer(16);
+        // Big endian to match the server
+        buffer = new DynamicBuffer(16, false);
     }
 
     @Override
@@ -94,4 +95,20 @@ public class DataPacketStream implements PacketStream {
     public DynamicBuffer getBuffer() {
         return buffer;
     }
+
+    @Override
+    public void writeBytes(byte[] b) {
+        for (byte v : b) {
+            buffer.add(v & 0xFF);
+        }
+    }
+
+    @Override
+    public byte[] readBytes(int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) reader.getInt8(readerOffset++);
+        }
+        return bytes;
+    }
 }
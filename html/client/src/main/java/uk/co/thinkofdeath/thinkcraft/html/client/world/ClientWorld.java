@@ -19,13 +19,11 @@ package uk.co.thinkofdeath.thinkcraft.html.client.world;
 import elemental.client.Browser;
 import elemental.events.Event;
 import elemental.events.EventListener;
-import elemental.html.ArrayBuffer;
 import elemental.xml.XMLHttpRequest;
 import uk.co.thinkofdeath.thinkcraft.html.client.MapViewer;
 import uk.co.thinkofdeath.thinkcraft.html.shared.buffer.JavascriptUByteBuffer;
-import uk.co.thinkofdeath.thinkcraft.html.shared.buffer.JavascriptViewBuffer;
+import uk.co.thinkofdeath.thinkcraft.protocol.packets.ViewPosition;
 import uk.co.thinkofdeath.thinkcraft.shared.platform.buffers.UByteBuffer;
-import uk.co.thinkofdeath.thinkcraft.shared.platform.buffers.ViewBuffer;
 import uk.co.thinkofdeath.thinkcraft.shared.worker.ChunkBuildMessage;
 import uk.co.thinkofdeath.thinkcraft.shared.worker.ChunkLoadMessage;
 import uk.co.thinkofdeath.thinkcraft.shared.worker.ChunkUnloadMessage;
@@ -37,6 +35,8 @@ import java.util.*;
 public class ClientWorld extends World {
 
     private static final int MAX_WORKER_TASKS = 5;
+    // The most chunks the server accepts in one request
+    private static final int MAX_BATCH_SIZE = 256;
     final MapViewer mapViewer;
     private boolean firstTick = true;
     private Set<String> loadingChunks = new HashSet<>();
@@ -132,15 +132,19 @@ public class ClientWorld extends World {
         }
 
         if (hasMoved) {
-            ArrayList<int[]> toLoad = new ArrayList<>();
-            for (int x = -MapViewer.VIEW_DISTANCE; x < MapViewer.VIEW_DISTANCE; x++) {
-                for (int z = -MapViewer.VIEW_DISTANCE; z < MapViewer.VIEW_DISTANCE; z++) {
-                    toLoad.add(new int[]{cx + x, cz + z});
+            if (mapViewer.shouldStreamChunks()) {
+                // The server works out which chunks are missing and
+                // pushes them nearest first
+                mapViewer.getConnection().send(new ViewPosition(cx, cz, MapViewer.VIEW_DISTANCE));
+            } else {
+                ArrayList<int[]> toLoad = new ArrayList<>();
+                for (int x = -MapViewer.VIEW_DISTANCE; x < MapViewer.VIEW_DISTANCE; x++) {
+                    for (int z = -MapViewer.VIEW_DISTANCE; z < MapViewer.VIEW_DISTANCE; z++) {
+                        toLoad.add(new int[]{cx + x, cz + z});
+                    }
                 }
-            }
-            Collections.sort(toLoad, new ChunkArraySorter(mapViewer.getCamera()));
-            for (int[] pos : toLoad) {
-                loadChunk(pos[0], pos[1]);
+                Collections.sort(toLoad, new ChunkArraySorter(mapViewer.getCamera()));
+                loadChunks(toLoad);
             }
 
             ArrayList<Chunk> toUnload = new ArrayList<>();
@@ -162,45 +166,152 @@ public class ClientWorld extends World {
     }
 
     /**
-     * Triggers an async request to load the chunk. The chunk is forwarded to all workers to be processed before being returned to the client
+     * Triggers async requests to load the chunks, batching them so that
+     * only a few requests are made. The chunks are forwarded to all workers
+     * to be processed before being returned to the client
      *
-     * @param x
-     *         The chunk x position
-     * @param z
-     *         The chunk z position
+     * @param positions
+     *         The chunk positions in the order they should be loaded
      */
-    private void loadChunk(final int x, final int z) {
-        final String key = chunkKey(x, z);
-        if (loadingChunks.contains(key) || isLoaded(x, z)) {
-            return;
+    private void loadChunks(List<int[]> positions) {
+        List<String> batch = new ArrayList<>();
+        for (int[] pos : positions) {
+            String key = chunkKey(pos[0], pos[1]);
+            if (loadingChunks.contains(key) || isLoaded(pos[0], pos[1])) {
+                continue;
+            }
+            loadingChunks.add(key);
+            batch.add(key);
+            if (batch.size() == MAX_BATCH_SIZE) {
+                requestChunks(batch);
+                batch = new ArrayList<>();
+            }
+        }
+        if (!batch.isEmpty()) {
+            requestChunks(batch);
+        }
+    }
+
+    private void requestChunks(List<String> keys) {
+        StringBuilder body = new StringBuilder();
+        for (String key : keys) {
+            if (body.length() != 0) {
+                body.append(',');
+            }
+            body.append(key);
         }
-        final XMLHttpRequest xmlHttpRequest = Browser.getWindow().newXMLHttpRequest();
-        xmlHttpRequest.open("POST", "http://" + mapViewer.getConnection().getAddress() + "/server/chunk", true);
-        xmlHttpRequest.setResponseType("arraybuffer");
-        xmlHttpRequest.setOnreadystatechange(new EventListener() {
-            @Override
-            public void handleEvent(Event evt) {
-                if (xmlHttpRequest.getReadyState() != 4) return;
-                if (xmlHttpRequest.getStatus() == 200) {
-                    // Got the chunk successfully, move on
-                    // to processing the chunk
-                    ArrayBuffer data = (ArrayBuffer) xmlHttpRequest.getResponse();
-                    ViewBuffer dataStream = JavascriptViewBuffer.create(data, false, 0, data.getByteLength());
-                    if (dataStream.getInt8(0) == 0) {
-                        loadingChunks.remove(key);
-                        return;
+        XMLHttpRequest xmlHttpRequest = Browser.getWindow().newXMLHttpRequest();
+        xmlHttpRequest.open("POST", "http://" + mapViewer.getConnection().getAddress() + "/server/chunks", true);
+        // An arraybuffer response is only available once the whole
+        // response has arrived, reading it as binary text lets each
+        // chunk be handed to the workers as soon as it is complete
+        xmlHttpRequest.overrideMimeType("text/plain; charset=x-user-defined");
+        ChunkBatchRequest request = new ChunkBatchRequest(xmlHttpRequest, keys);
+        xmlHttpRequest.setOnprogress(request);
+        xmlHttpRequest.setOnreadystatechange(request);
+        xmlHttpRequest.send(body.toString());
+    }
+
+    /**
+     * Parses the frames (x, z, length and the encoded chunk) of a
+     * batch response as they arrive
+     */
+    private class ChunkBatchRequest implements EventListener {
+
+        private final XMLHttpRequest xmlHttpRequest;
+        private final List<String> keys;
+        private final Set<String> sent = new HashSet<>();
+        // The start of the first frame which hasn't been read yet
+        private int offset;
+        private boolean done;
+
+        private ChunkBatchRequest(XMLHttpRequest xmlHttpRequest, List<String> keys) {
+            this.xmlHttpRequest = xmlHttpRequest;
+            this.keys = keys;
+        }
+
+        @Override
+        public void handleEvent(Event evt) {
+            int state = xmlHttpRequest.getReadyState();
+            if (done || state < XMLHttpRequest.LOADING) return;
+            if (xmlHttpRequest.getStatus() == 200) {
+                readFrames(xmlHttpRequest.getResponseText());
+            }
+            if (state != XMLHttpRequest.DONE) return;
+            done = true;
+            // Chunks which weren't sent to the workers (e.g.
+            // non-existing chunks or a failed request) are removed
+            // from the loadingChunks set so that they may be tried
+            // again, the rest are removed once they are added
+            for (String key : keys) {
+                if (!sent.contains(key)) {
+                    loadingChunks.remove(key);
+                }
+            }
+        }
+
+        // Sends every complete frame after the offset to the workers,
+        // a partial frame is left for the next event
+        private void readFrames(String data) {
+            while (offset + 12 <= data.length()) {
+                int length = readInt(data, offset + 8);
+                if (offset + 12 + length > data.length()) {
+                    return;
+                }
+                int x = readInt(data, offset);
+                int z = readInt(data, offset + 4);
+                int start = offset + 12;
+                offset = start + length;
+                if (length != 0 && (data.charAt(start) & 0xFF) != 0) {
+                    UByteBuffer sendableData = JavascriptUByteBuffer.create(length);
+                    for (int i = 0; i < length; i++) {
+                        sendableData.set(i, data.charAt(start + i) & 0xFF);
                     }
-                    UByteBuffer sendableData = JavascriptUByteBuffer.create(data, 0, data.getByteLength());
                     mapViewer.getWorkerPool().sendMessage(new ChunkLoadMessage(x, z, sendableData), true);
-                } else {
-                    // Request failed (e.g. non-existing chunk)
-                    // remove from the loadingChunks set so
-                    // that it may be tried again
-                    loadingChunks.remove(key);
+                    sent.add(chunkKey(x, z));
                 }
             }
-        });
-        xmlHttpRequest.send(key);
+        }
+    }
+
+    // Reads a big endian int from a response read as binary text
+    private static int readInt(String data, int offset) {
+        return ((data.charAt(offset) & 0xFF) << 24)
+                | ((data.charAt(offset + 1) & 0xFF) << 16)
+                | ((data.charAt(offset + 2) & 0xFF) << 8)
+                | (data.charAt(offset + 3) & 0xFF);
+    }
+
+    /**
+     * Forwards a chunk pushed by the server to the workers unless it
+     * is already loaded or has left the view since it was sent
+     *
+     * @param x
+     *         The x position of the chunk
+     * @param z
+     *         The z position of the chunk
+     * @param data
+     *         The gzip'd chunk, inflated by the worker, or empty if
+     *         the chunk doesn't exist
+     */
+    public void receiveChunk(int x, int z, byte[] data) {
+        if (data.length == 0) {
+            // Nothing to load, the server won't send it again until
+            // it leaves and re-enters the view
+            return;
+        }
+        String key = chunkKey(x, z);
+        if (loadingChunks.contains(key) || isLoaded(x, z)
+                || x < lastChunkX - MapViewer.VIEW_DISTANCE || x >= lastChunkX + MapViewer.VIEW_DISTANCE
+                || z < lastChunkZ - MapViewer.VIEW_DISTANCE || z >= lastChunkZ + MapViewer.VIEW_DISTANCE) {
+            return;
+        }
+        UByteBuffer sendableData = JavascriptUByteBuffer.create(data.length);
+        for (int i = 0; i < data.length; i++) {
+            sendableData.set(i, data[i] & 0xFF);
+        }
+        loadingChunks.add(key);
+        mapViewer.getWorkerPool().sendMessage(new ChunkLoadMessage(x, z, sendableData, true), true);
     }
 
     @Override
@@ -34,6 +34,8 @@ import uk.co.thinkofdeath.thinkcraft.shared.TextureMap;
 import uk.co.thinkofdeath.thinkcraft.shared.block.BlockRegistry;
 import uk.co.thinkofdeath.thinkcraft.shared.model.Model;
 import uk.co.thinkofdeath.thinkcraft.shared.platform.buffers.Buffer;
+import uk.co.thinkofdeath.thinkcraft.shared.platform.buffers.UByteBuffer;
+import uk.co.thinkofdeath.thinkcraft.shared.util.GzipInflater;
 import uk.co.thinkofdeath.thinkcraft.shared.worker.*;
 import uk.co.thinkofdeath.thinkcraft.shared.world.World;
 
@@ -166,9 +168,14 @@ public class Worker implements EntryPoint, EventListener, IMapViewer, MessageHan
 
     @Override
     public void handle(ChunkLoadMessage chunkLoadMessage) {
+        UByteBuffer data = chunkLoadMessage.getData();
+        if (chunkLoadMessage.isCompressed()) {
+            // Streamed chunks skip the browser's gzip handling
+            data = GzipInflater.inflate(data, 0, data.size());
+        }
         WorkerChunk c = new WorkerChunk(world,
                 chunkLoadMessage.getX(), chunkLoadMessage.getZ(),
-                chunkLoadMessage.getData(), chunkLoadMessage.getReturn());
+                data, chunkLoadMessage.getReturn());
         world.addChunk(c);
         c.postAdd();
     }
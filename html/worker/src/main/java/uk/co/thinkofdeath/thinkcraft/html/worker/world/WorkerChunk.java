@@ -39,6 +39,10 @@ import java.util.ArrayList;
 
 public class WorkerChunk extends Chunk {
 
+    private static final int SECTION_SIZE = 16 * 16 * 16;
+    private static final int LIGHT_NO_BLOCK = 0x1;
+    private static final int LIGHT_FULL_SKY = 0x2;
+
     private final WorkerWorld world;
     private final boolean reply;
 
@@ -61,60 +65,99 @@ public class WorkerChunk extends Chunk {
         int sectionMask = dataStream.getUInt16(1);
 
         // Current offset into the buffer
-        int offset = 0;
-
-        int count = Integer.bitCount(sectionMask);
-
-        int blockDataOffset = 16 * 16 * 16 * 2 * count;
-        int skyDataOffset = blockDataOffset + 16 * 16 * 16 * count;
+        int offset = 3;
 
         for (int i = 0; i < 16; i++) {
             if ((sectionMask & (1 << i)) == 0) {
                 continue;
             }
             ChunkSection chunkSection = sections[i] = new ChunkSection();
-            int idx = 0;
-            for (int oy = 0; oy < 16; oy++) {
-                for (int oz = 0; oz < 16; oz++) {
-                    for (int ox = 0; ox < 16; ox++) {
-                        int id = dataStream.getUInt16((offset << 1) + 3);
-                        int light = byteData.get(blockDataOffset + offset + 3);
-                        int sky = byteData.get(skyDataOffset + offset + 3);
-                        offset++;
 
-                        Block block = blockRegistry.get(id >> 4, id & 0xF);
-                        if (block == null) {
-                            block = Blocks.MISSING_BLOCK();
-                        }
+            // Resolve each state in the section's palette once
+            // instead of once per block
+            int paletteSize = dataStream.getUInt16(offset);
+            offset += 2;
+            int[] paletteIds = new int[paletteSize];
+            boolean[] paletteAir = new boolean[paletteSize];
+            for (int p = 0; p < paletteSize; p++) {
+                int id = dataStream.getUInt16(offset);
+                offset += 2;
+                Block block = blockRegistry.get(id >> 4, id & 0xF);
+                if (block == null) {
+                    block = Blocks.MISSING_BLOCK();
+                }
+                if (!blockIdMap.containsKey(block)) {
+                    idBlockMap.put(nextId, block);
+                    blockIdMap.put(block, nextId);
+                    nextId++;
+                }
+                paletteIds[p] = blockIdMap.get(block);
+                paletteAir[p] = block == Blocks.AIR();
+            }
 
-                        if (!blockIdMap.containsKey(block)) {
-                            idBlockMap.put(nextId, block);
-                            blockIdMap.put(block, nextId);
-                            nextId++;
-                        }
-                        int chunkBlockId = blockIdMap.get(block);
+            int bits = byteData.get(offset++);
+            int indexOffset = offset;
+            if (bits == 16) {
+                offset += SECTION_SIZE * 2;
+            } else {
+                offset += (SECTION_SIZE * bits) / 8;
+            }
+            // Light is packed two values per byte and left out
+            // completely for sections without block light or
+            // fully lit by the sky
+            int lightFlags = byteData.get(offset++);
+            boolean hasBlockLight = (lightFlags & LIGHT_NO_BLOCK) == 0;
+            boolean hasSkyLight = (lightFlags & LIGHT_FULL_SKY) == 0;
+            int blockLightOffset = offset;
+            if (hasBlockLight) {
+                offset += SECTION_SIZE / 2;
+            }
+            int skyLightOffset = offset;
+            if (hasSkyLight) {
+                offset += SECTION_SIZE / 2;
+            }
 
-                        chunkSection.getBlocks().set(idx, chunkBlockId);
-                        chunkSection.getBlockLight().set(idx, light);
-                        chunkSection.getSkyLight().set(idx, sky);
-                        idx++;
+            int valueMask = (1 << bits) - 1;
+            int perByte = bits == 0 || bits == 16 ? 1 : 8 / bits;
+            for (int idx = 0; idx < SECTION_SIZE; idx++) {
+                int index;
+                if (bits == 0) {
+                    index = 0;
+                } else if (bits == 16) {
+                    index = dataStream.getUInt16(indexOffset + (idx << 1));
+                } else {
+                    index = (byteData.get(indexOffset + idx / perByte) >> ((idx % perByte) * bits)) & valueMask;
+                }
+                // New sections start with no block light and full
+                // sky light so only stored values need setting
+                int shift = (idx & 1) << 2;
+                int light = 0;
+                if (hasBlockLight) {
+                    light = (byteData.get(blockLightOffset + (idx >> 1)) >> shift) & 0xF;
+                    chunkSection.getBlockLight().set(idx, light);
+                }
+                int sky = 15;
+                if (hasSkyLight) {
+                    sky = (byteData.get(skyLightOffset + (idx >> 1)) >> shift) & 0xF;
+                    chunkSection.getSkyLight().set(idx, sky);
+                }
 
-                        if (block != Blocks.AIR()) {
-                            chunkSection.increaseCount();
-                        }
-                        if (light != 0) {
-                            chunkSection.increaseCount();
-                        }
-                        if (sky != 15) {
-                            chunkSection.increaseCount();
-                        }
-                    }
+                chunkSection.getBlocks().set(idx, paletteIds[index]);
+
+                if (!paletteAir[index]) {
+                    chunkSection.increaseCount();
+                }
+                if (light != 0) {
+                    chunkSection.increaseCount();
+                }
+                if (sky != 15) {
+                    chunkSection.increaseCount();
                 }
             }
         }
-        for (int bx = 0; bx < 16; bx++) {
-            for (int bz = 0; bz < 16; bz++) {
-                setBiome(bx, bz, Biome.getById(byteData.get(skyDataOffset + offset + 3 + bx + bz * 16)));
+        for (int bz = 0; bz < 16; bz++) {
+            for (int bx = 0; bx < 16; bx++) {
+                setBiome(bx, bz, Biome.getById(byteData.get(offset++)));
             }
         }
         this.reply = reply;
@@ -18,9 +18,12 @@ package uk.co.thinkofdeath.thinkcraft.protocol;
 
 import uk.co.thinkofdeath.thinkcraft.protocol.packets.InitConnection;
 import uk.co.thinkofdeath.thinkcraft.protocol.packets.KeepAlive;
+import uk.co.thinkofdeath.thinkcraft.protocol.packets.ViewPosition;
 
 public interface ClientPacketHandler extends PacketHandler {
     void handle(InitConnection initConnection);
 
     void handle(KeepAlive keepAlive);
+
+    void handle(ViewPosition viewPosition);
 }
@@ -37,4 +37,8 @@ public interface PacketStream {
     void writeBoolean(boolean b);
 
     boolean readBoolean();
+
+    void writeBytes(byte[] b);
+
+    byte[] readBytes(int length);
 }
@@ -34,10 +34,12 @@ public class Packets {
     static {
         client(new InitConnection());
         client(new KeepAlive());
+        client(new ViewPosition());
 
         server(new ServerSettings());
         server(new TimeUpdate());
         server(new SpawnPosition());
+        server(new ChunkData());
     }
 
     public static Packet<ServerPacketHandler> createServerPacket(int id) {
@@ -16,6 +16,7 @@
 
 package uk.co.thinkofdeath.thinkcraft.protocol;
 
+import uk.co.thinkofdeath.thinkcraft.protocol.packets.ChunkData;
 import uk.co.thinkofdeath.thinkcraft.protocol.packets.ServerSettings;
 import uk.co.thinkofdeath.thinkcraft.protocol.packets.SpawnPosition;
 import uk.co.thinkofdeath.thinkcraft.protocol.packets.TimeUpdate;
@@ -26,4 +27,6 @@ public interface ServerPacketHandler extends PacketHandler {
     void handle(SpawnPosition spawnPosition);
 
     void handle(TimeUpdate timeUpdate);
+
+    void handle(ChunkData chunkData);
 }
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2014 Matthew Collins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.thinkofdeath.thinkcraft.protocol.packets;
+
+import uk.co.thinkofdeath.thinkcraft.protocol.Packet;
+import uk.co.thinkofdeath.thinkcraft.protocol.PacketStream;
+import uk.co.thinkofdeath.thinkcraft.protocol.ServerPacketHandler;
+
+/**
+ * A chunk pushed to the client, gzip'd exactly as the chunk end
+ * points return it. WebSockets don't get the browser's transparent
+ * gzip handling so the client's workers inflate it themselves. A
+ * chunk that doesn't exist is sent without any data
+ */
+public class ChunkData implements Packet<ServerPacketHandler> {
+
+    private int x;
+    private int z;
+    private byte[] data;
+
+    public ChunkData() {
+    }
+
+    public ChunkData(int x, int z, byte[] data) {
+        this.x = x;
+        this.z = z;
+        this.data = data;
+    }
+
+    @Override
+    public Packet<ServerPacketHandler> create() {
+        return new ChunkData();
+    }
+
+    @Override
+    public void read(PacketStream in) {
+        x = in.readInt();
+        z = in.readInt();
+        data = in.readBytes(in.readInt());
+    }
+
+    @Override
+    public void write(PacketStream out) {
+        out.writeInt(x);
+        out.writeInt(z);
+        out.writeInt(data.length);
+        out.writeBytes(data);
+    }
+
+    @Override
+    public void handle(ServerPacketHandler handler) {
+        handler.handle(this);
+    }
+
+    public int getX() {
+        return x;
+    }
+
+    public int getZ() {
+        return z;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+}
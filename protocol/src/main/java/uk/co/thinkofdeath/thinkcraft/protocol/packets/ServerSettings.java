@@ -23,13 +23,15 @@ import uk.co.thinkofdeath.thinkcraft.protocol.ServerPacketHandler;
 public class ServerSettings implements Packet<ServerPacketHandler> {
 
     private boolean hideOres;
+    private boolean streamChunks;
 
     public ServerSettings() {
 
     }
 
-    public ServerSettings(boolean hideOres) {
+    public ServerSettings(boolean hideOres, boolean streamChunks) {
         this.hideOres = hideOres;
+        this.streamChunks = streamChunks;
     }
 
     @Override
@@ -40,11 +42,13 @@ public class ServerSettings implements Packet<ServerPacketHandler> {
     @Override
     public void read(PacketStream in) {
         hideOres = in.readBoolean();
+        streamChunks = in.readBoolean();
     }
 
     @Override
     public void write(PacketStream out) {
         out.writeBoolean(hideOres);
+        out.writeBoolean(streamChunks);
     }
 
     @Override
@@ -55,4 +59,8 @@ public class ServerSettings implements Packet<ServerPacketHandler> {
     public boolean areOresHidden() {
         return hideOres;
     }
+
+    public boolean shouldStreamChunks() {
+        return streamChunks;
+    }
 }
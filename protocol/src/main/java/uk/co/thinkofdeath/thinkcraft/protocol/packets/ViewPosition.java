@@ -0,0 +1,77 @@
+/*
+ * Copyright 2014 Matthew Collins
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package uk.co.thinkofdeath.thinkcraft.protocol.packets;
+
+import uk.co.thinkofdeath.thinkcraft.protocol.ClientPacketHandler;
+import uk.co.thinkofdeath.thinkcraft.protocol.Packet;
+import uk.co.thinkofdeath.thinkcraft.protocol.PacketStream;
+
+/**
+ * Sent when the camera moves into another chunk. The server streams
+ * the chunks within viewDistance of the position, nearest first
+ */
+public class ViewPosition implements Packet<ClientPacketHandler> {
+
+    private int x;
+    private int z;
+    private int viewDistance;
+
+    public ViewPosition() {
+    }
+
+    public ViewPosition(int x, int z, int viewDistance) {
+        this.x = x;
+        this.z = z;
+        this.viewDistance = viewDistance;
+    }
+
+    @Override
+    public Packet<ClientPacketHandler> create() {
+        return new ViewPosition();
+    }
+
+    @Override
+    public void read(PacketStream in) {
+        x = in.readInt();
+        z = in.readInt();
+        viewDistance = in.readUByte();
+    }
+
+    @Override
+    public void write(PacketStream out) {
+        out.writeInt(x);
+        out.writeInt(z);
+        out.writeUByte(viewDistance);
+    }
+
+    @Override
+    public void handle(ClientPacketHandler handler) {
+        handler.handle(this);
+    }
+
+    public int getX() {
+        return x;
+    }
+
+    public int getZ() {
+        return z;
+    }
+
+    public int getViewDistance() {
+        return viewDistance;
+    }
+}